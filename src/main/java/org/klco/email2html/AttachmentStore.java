@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.klco.email2html.utils.CopyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content addressed store for attachments. The content of each distinct
+ * attachment is stored once, keyed by its SHA-256 hash, and the attachment
+ * files in the output directory are hard links to the stored content.
+ * 
+ * The hash of every attachment file is recorded in an index which is loaded
+ * at startup, so duplicates are detected across runs without reading the
+ * existing attachments. The first file recorded for a hash is its owner, any
+ * other file with the same content is a duplicate.
+ * 
+ * @author dklco
+ */
+public class AttachmentStore {
+
+	/**
+	 * The algorithm used to hash the attachment content.
+	 */
+	public static final String ALGORITHM = "SHA-256";
+
+	/**
+	 * The name of the store directory within the output directory.
+	 */
+	public static final String DIR_NAME = ".email2html-store";
+
+	/**
+	 * The name of the index file within the store directory.
+	 */
+	private static final String INDEX_NAME = "index";
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory
+			.getLogger(AttachmentStore.class);
+
+	private final File dir;
+
+	/**
+	 * The hash of each attachment file, by path relative to the output
+	 * directory.
+	 */
+	private final Map<String, String> hashes = new HashMap<String, String>();
+
+	private final File indexFile;
+
+	private Writer index;
+
+	private final File outputDir;
+
+	/**
+	 * The owner of each hash, by path relative to the output directory.
+	 */
+	private final Map<String, String> owners = new HashMap<String, String>();
+
+	/**
+	 * Opens the store in the output directory, loading the index.
+	 * 
+	 * @param outputDir
+	 *            the output directory
+	 * @throws IOException
+	 */
+	public AttachmentStore(File outputDir) throws IOException {
+		log.trace("AttachmentStore");
+		this.outputDir = outputDir;
+		this.dir = new File(outputDir, DIR_NAME);
+		if (!dir.exists()) {
+			log.debug("Creating attachment store {}", dir.getAbsolutePath());
+			dir.mkdirs();
+		}
+		this.indexFile = new File(dir, INDEX_NAME);
+		if (indexFile.exists()) {
+			load();
+			log.info("Loaded {} stored attachments", owners.size());
+		}
+		index = new OutputStreamWriter(new FileOutputStream(indexFile, true),
+				"UTF-8");
+	}
+
+	/**
+	 * Closes the store.
+	 */
+	public synchronized void close() {
+		IOUtils.closeQuietly(index);
+	}
+
+	/**
+	 * Gets the hash recorded for the attachment file.
+	 * 
+	 * @param file
+	 *            the attachment file
+	 * @return the hash or null if the file is not in the store
+	 */
+	public synchronized String getHash(File file) {
+		return hashes.get(getPath(file));
+	}
+
+	/**
+	 * Checks whether the content with the specified hash is owned by another
+	 * attachment file which still exists.
+	 * 
+	 * @param hash
+	 *            the content hash
+	 * @param file
+	 *            the attachment file
+	 * @return true if the attachment is a duplicate of another attachment
+	 */
+	public synchronized boolean isDuplicate(String hash, File file) {
+		String owner = owners.get(hash);
+		return owner != null && !owner.equals(getPath(file))
+				&& new File(outputDir, owner).exists();
+	}
+
+	/**
+	 * Links the attachment file to the stored content, unless the content is
+	 * owned by another attachment file which still exists. The check and the
+	 * link are atomic, so when the same content is written to several folders
+	 * concurrently only one of them keeps it.
+	 * 
+	 * @param hash
+	 *            the hash of the stored content
+	 * @param file
+	 *            the attachment file
+	 * @return true if the file was linked, false if it is a duplicate
+	 * @throws IOException
+	 */
+	public synchronized boolean linkUnlessDuplicate(String hash, File file)
+			throws IOException {
+		if (isDuplicate(hash, file)) {
+			return false;
+		}
+		link(hash, file);
+		return true;
+	}
+
+	/**
+	 * Links the attachment file to the stored content, replacing any existing
+	 * file. The link is created under a temporary name and renamed into place,
+	 * so the attachment file is never seen partially written. If the file
+	 * system does not support hard links, the content is copied instead.
+	 * 
+	 * @param hash
+	 *            the hash of the stored content
+	 * @param file
+	 *            the attachment file
+	 * @throws IOException
+	 */
+	public synchronized void link(String hash, File file) throws IOException {
+		log.trace("link");
+		File tmp = new File(file.getParentFile(), "." + file.getName()
+				+ ".tmp");
+		tmp.delete();
+		linkOrCopy(getBlob(hash), tmp);
+		CopyUtils.rename(tmp, file);
+		record(hash, file);
+	}
+
+	/**
+	 * Adds an existing attachment file to the store, for files written before
+	 * the store was used.
+	 * 
+	 * @param file
+	 *            the attachment file
+	 * @return the hash of the file content
+	 * @throws IOException
+	 */
+	public String store(File file) throws IOException {
+		log.trace("store");
+		MessageDigest digest = getDigest();
+		CopyUtils.digest(file, digest);
+		String hash = toHex(digest.digest());
+		synchronized (this) {
+			File blob = getBlob(hash);
+			if (!blob.exists()) {
+				blob.getParentFile().mkdirs();
+				File tmp = new File(dir, hash + ".tmp");
+				tmp.delete();
+				linkOrCopy(file, tmp);
+				CopyUtils.rename(tmp, blob);
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Stores the content of the stream, if the same content is already stored
+	 * the new copy is discarded.
+	 * 
+	 * @param in
+	 *            the content to store, the stream is not closed
+	 * @return the hash of the content
+	 * @throws IOException
+	 */
+	public String store(InputStream in) throws IOException {
+		log.trace("store");
+		File tmp = File.createTempFile("attachment", ".tmp", dir);
+		try {
+			MessageDigest digest = getDigest();
+			CopyUtils.copy(in, tmp, digest);
+			String hash = toHex(digest.digest());
+			synchronized (this) {
+				File blob = getBlob(hash);
+				if (!blob.exists()) {
+					blob.getParentFile().mkdirs();
+					CopyUtils.rename(tmp, blob);
+				} else {
+					log.debug("Content {} already stored", hash);
+				}
+			}
+			return hash;
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private void copy(File from, File to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		try {
+			CopyUtils.copy(in, to, null);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private File getBlob(String hash) {
+		return new File(new File(dir, hash.substring(0, 2)), hash);
+	}
+
+	private MessageDigest getDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Digest algorithm " + ALGORITHM
+					+ " not available");
+		}
+	}
+
+	private String getPath(File file) {
+		String path = file.getAbsolutePath();
+		String base = outputDir.getAbsolutePath() + File.separator;
+		return path.startsWith(base) ? path.substring(base.length()) : path;
+	}
+
+	/**
+	 * Creates a hard link to the source file, copying the file if the link
+	 * cannot be created.
+	 */
+	private void linkOrCopy(File source, File target) throws IOException {
+		try {
+			Files.createLink(target.toPath(), source.toPath());
+		} catch (UnsupportedOperationException e) {
+			copy(source, target);
+		} catch (IOException e) {
+			log.debug("Unable to link attachment, copying", e);
+			copy(source, target);
+		}
+	}
+
+	private void load() throws IOException {
+		log.debug("Loading attachment index from {}",
+				indexFile.getAbsolutePath());
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(indexFile), "UTF-8"));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader
+					.readLine()) {
+				String[] record = line.split("\t");
+				if (record.length != 2) {
+					log.warn("Ignoring invalid index record: {}", line);
+					continue;
+				}
+				hashes.put(record[1], record[0]);
+				if (!owners.containsKey(record[0])) {
+					owners.put(record[0], record[1]);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void record(String hash, File file) throws IOException {
+		String path = getPath(file);
+		if (hash.equals(hashes.get(path))) {
+			return;
+		}
+		hashes.put(path, hash);
+		String owner = owners.get(hash);
+		if (owner == null || !new File(outputDir, owner).exists()) {
+			owners.put(hash, path);
+		}
+		index.write(hash);
+		index.write('\t');
+		index.write(path);
+		index.write('\n');
+		index.flush();
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
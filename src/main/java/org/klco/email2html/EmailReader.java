@@ -21,30 +21,63 @@
  */
 package org.klco.email2html;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.BodyPart;
+import javax.mail.FetchProfile;
 import javax.mail.Folder;
+import javax.mail.FolderClosedException;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
 import javax.mail.Session;
-import javax.mail.Store;
+import javax.mail.StoreClosedException;
+import javax.mail.UIDFolder;
 import javax.mail.internet.ContentType;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.ParseException;
-import javax.mail.search.SubjectTerm;
+import javax.mail.search.SearchTerm;
 import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
 
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.FastDateFormat;
 import org.klco.email2html.models.Email2HTMLConfiguration;
 import org.klco.email2html.models.EmailMessage;
+import org.klco.email2html.sources.EmlDirectoryMessageSource;
+import org.klco.email2html.sources.MaildirMessageSource;
+import org.klco.email2html.sources.MboxMessageSource;
+import org.klco.email2html.sources.MessageSource;
+import org.klco.email2html.utils.BreakStringMatcher;
+import org.klco.email2html.utils.SearchTermUtils;
 import org.owasp.html.PolicyFactory;
 import org.owasp.html.Sanitizers;
 import org.slf4j.Logger;
@@ -82,6 +115,26 @@ public class EmailReader {
 	 */
 	public static final String CT_PT_TEXT = "text";
 
+	/**
+	 * Constant for the directory of .eml files source.
+	 */
+	public static final String SOURCE_EML = "eml";
+
+	/**
+	 * Constant for the IMAP server source.
+	 */
+	public static final String SOURCE_IMAP = "imap";
+
+	/**
+	 * Constant for the Maildir source.
+	 */
+	public static final String SOURCE_MAILDIR = "maildir";
+
+	/**
+	 * Constant for the mbox file source.
+	 */
+	public static final String SOURCE_MBOX = "mbox";
+
 	/**
 	 * Constant for video content types.
 	 */
@@ -92,6 +145,33 @@ public class EmailReader {
 	 */
 	public static final String CT_ST_HTML = "html";
 
+	/**
+	 * The items to batch fetch for each chunk of messages before they are
+	 * processed, covers everything read from the message before the content
+	 * itself.
+	 */
+	private static final FetchProfile FETCH_PROFILE = new FetchProfile();
+	static {
+		FETCH_PROFILE.add(FetchProfile.Item.ENVELOPE);
+		FETCH_PROFILE.add(FetchProfile.Item.CONTENT_INFO);
+		FETCH_PROFILE.add(UIDFolder.FetchProfileItem.UID);
+		FETCH_PROFILE.add(IMAPFolder.FetchProfileItem.SIZE);
+	}
+
+	/**
+	 * Fetch profile for retrieving only the message UIDs.
+	 */
+	private static final FetchProfile UID_PROFILE = new FetchProfile();
+	static {
+		UID_PROFILE.add(UIDFolder.FetchProfileItem.UID);
+	}
+
+	/**
+	 * The number of messages to load from the folder at a time when
+	 * prefetching is disabled.
+	 */
+	private static final int DEFAULT_CHUNK_SIZE = 100;
+
 	/** The Constant log. */
 	private static final Logger log = LoggerFactory
 			.getLogger(EmailReader.class);
@@ -104,8 +184,8 @@ public class EmailReader {
 			.and(Sanitizers.LINKS);
 
 	/** The Constant READABLE_DATE_FORMAT. */
-	private static final SimpleDateFormat READABLE_DATE_FORMAT = new SimpleDateFormat(
-			"MMM d, yyyy");
+	private static final FastDateFormat READABLE_DATE_FORMAT = FastDateFormat
+			.getInstance("MMM d, yyyy");
 
 	/**
 	 * Gets the sender.
@@ -133,11 +213,24 @@ public class EmailReader {
 		return from;
 	}
 
-	private String[] breakStrings;
+	/**
+	 * Finds where the original message breaks from the replies.
+	 */
+	private BreakStringMatcher breakStrings;
+
+	/**
+	 * The text sub-types to use as the message body, in order of preference.
+	 */
+	private String[] bodyPreference;
 
 	/** The config. */
 	private Email2HTMLConfiguration config;
 
+	/**
+	 * The journal of the current run, null if journaling is disabled.
+	 */
+	private Journal journal = null;
+
 	/**
 	 * The OutputWriter instance.
 	 */
@@ -145,6 +238,32 @@ public class EmailReader {
 
 	private boolean overwrite;
 
+	/**
+	 * The search term for selecting the messages on the server, null to
+	 * retrieve all of the messages.
+	 */
+	private SearchTerm searchTerm;
+
+	/**
+	 * The folder the watcher is waiting on for new messages, while idling.
+	 */
+	private volatile IMAPFolder idleFolder;
+
+	/**
+	 * Released when watching is stopped, ending the wait between polls.
+	 */
+	private volatile CountDownLatch watchStopped;
+
+	/**
+	 * Flag for whether the folder is being watched.
+	 */
+	private volatile boolean watching = false;
+
+	/**
+	 * The state of the previous runs, only set for incremental runs.
+	 */
+	private SyncState syncState = null;
+
 	/**
 	 * Instantiates a new email reader.
 	 * 
@@ -156,7 +275,7 @@ public class EmailReader {
 	public EmailReader(Email2HTMLConfiguration config)
 			throws FileNotFoundException, IOException {
 		this.config = config;
-		outputWriter = new OutputWriter(config);
+		openOutput();
 
 		overwrite = config.getOverwrite();
 
@@ -164,8 +283,45 @@ public class EmailReader {
 			config.getHookObj().init(config);
 		}
 
-		breakStrings = config.getBreakStrings().split("\\,");
+		searchTerm = SearchTermUtils.buildSearchTerm(config);
+
+		if (config.isIncremental()) {
+			syncState = new SyncState(new File(config.getOutputDir()));
+		}
+
+		String[] breakStrings = config.getBreakStrings().split("\\,");
 		log.debug("Using break strings: " + Arrays.toString(breakStrings));
+		this.breakStrings = new BreakStringMatcher(breakStrings,
+				config.isBreakStringsIgnoreCase());
+		bodyPreference = StringUtils.stripAll(StringUtils.split(
+				StringUtils.defaultString(config.getBodyPreference()), ','));
+	}
+
+	/**
+	 * Closes the output writer and the journal at the end of a run, releasing
+	 * their files and threads.
+	 */
+	private void closeOutput() {
+		if (outputWriter != null) {
+			outputWriter.close();
+			outputWriter = null;
+			journal = null;
+		}
+	}
+
+	/**
+	 * Opens the journal and the output writer, unless they are still open
+	 * from the construction of the reader.
+	 * 
+	 * @throws IOException
+	 */
+	private void openOutput() throws IOException {
+		if (outputWriter == null) {
+			if (config.isJournal()) {
+				journal = new Journal(new File(config.getOutputDir()));
+			}
+			outputWriter = new OutputWriter(config, journal);
+		}
 	}
 
 	/**
@@ -176,15 +332,17 @@ public class EmailReader {
 	 *            the email message object
 	 * @param multipart
 	 *            the multipart container
+	 * @param body
+	 *            the selection of the message body
 	 * @throws MessagingException
 	 */
-	private void getMessageContent(EmailMessage message, Multipart multipart)
-			throws MessagingException {
+	private void getMessageContent(EmailMessage message, Multipart multipart,
+			BodySelection body) throws MessagingException {
 		log.trace("getMessageContent(Multipart)");
 		for (int i = 0; i < multipart.getCount(); i++) {
 			BodyPart bodyPart = multipart.getBodyPart(i);
 			try {
-				getMessageContent(message, bodyPart);
+				getMessageContent(message, bodyPart, body);
 			} catch (Exception e) {
 				log.warn("Exception processing part " + i + "of type "
 						+ bodyPart.getContentType(), e);
@@ -193,6 +351,36 @@ public class EmailReader {
 
 	}
 
+	/**
+	 * Loads the content of the message. The attachments are written as the
+	 * parts are walked, while the text parts are only compared by type, the
+	 * content of the preferred text part is then loaded as the message body.
+	 * For IMAP messages the parts are walked using the BODYSTRUCTURE, so the
+	 * content of the text parts which are not used is never fetched.
+	 * 
+	 * @param message
+	 *            the message object to populate
+	 * @param part
+	 *            the message
+	 * @throws ParseException
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	private void getMessageContent(EmailMessage message, Part part)
+			throws ParseException, MessagingException, IOException {
+		log.trace("getMessageContent");
+		BodySelection body = new BodySelection();
+		getMessageContent(message, part, body);
+		if (body.part != null) {
+			try {
+				getText(message, body.part);
+			} catch (IOException e) {
+				log.warn("Exception loading message body of type "
+						+ body.part.getContentType(), e);
+			}
+		}
+	}
+
 	/**
 	 * Handles the individual parts, attempts to figure out what each part is
 	 * and handle it appropriately.
@@ -201,12 +389,15 @@ public class EmailReader {
 	 *            the message object to populate
 	 * @param part
 	 *            the current message part
+	 * @param body
+	 *            the selection of the message body
 	 * @throws ParseException
 	 * @throws MessagingException
 	 * @throws IOException
 	 */
-	private void getMessageContent(EmailMessage message, Part part)
-			throws ParseException, MessagingException, IOException {
+	private void getMessageContent(EmailMessage message, Part part,
+			BodySelection body) throws ParseException, MessagingException,
+			IOException {
 		log.trace("getMessageContent(Part)");
 		ContentType contentType = new ContentType(part.getContentType());
 
@@ -214,11 +405,11 @@ public class EmailReader {
 				contentType.getPrimaryType(), contentType.getSubType());
 		if (CT_PT_TEXT.equalsIgnoreCase(contentType.getPrimaryType())) {
 			log.debug("Processing text part");
-			getText(message, part);
+			body.offer(part, contentType.getSubType());
 		} else if (CT_PT_MULTIPART.equalsIgnoreCase(contentType
 				.getPrimaryType())) {
 			log.debug("Handling multipart");
-			getMessageContent(message, (Multipart) part.getContent());
+			getMessageContent(message, (Multipart) part.getContent(), body);
 		} else if (CT_PT_IMAGE.equalsIgnoreCase(contentType.getPrimaryType())
 				|| CT_PT_VIDEO.equalsIgnoreCase(contentType.getPrimaryType())
 				|| CT_PT_AUDIO.equalsIgnoreCase(contentType.getPrimaryType())
@@ -233,27 +424,25 @@ public class EmailReader {
 	}
 
 	/**
-	 * Get the text from the part.
+	 * Get the text from the part. The trimmed text is sanitized as the message
+	 * is written, rather than being held as a sanitized copy.
 	 * 
 	 * @param message
 	 *            the message to update
 	 * @param part
 	 *            the part from which to retrieve the text
-	 * @throws ParseException
 	 * @throws MessagingException
 	 * @throws IOException
 	 */
 	private void getText(EmailMessage message, Part part)
-			throws ParseException, MessagingException, IOException {
+			throws MessagingException, IOException {
 		log.trace("getText");
-		ContentType contentType = new ContentType(part.getContentType());
-		if (message.getFullMessage() == null
-				|| CT_ST_HTML.equalsIgnoreCase(contentType.getSubType())) {
-			log.debug("Loading text of type: {}", contentType.getSubType());
-			message.setFullMessage(part.getContent().toString());
-			message.setMessage(policy.sanitize(trimMessage(message
-					.getFullMessage())));
+		log.debug("Loading text of type: {}", part.getContentType());
+		String text = part.getContent().toString();
+		if (config.isKeepFullMessage()) {
+			message.setFullMessage(text);
 		}
+		message.setMessageBody(new SanitizedHtml(trimMessage(text), policy));
 	}
 
 	/**
@@ -261,70 +450,442 @@ public class EmailReader {
 	 */
 	public void readEmails() {
 		log.info("getEmail");
-		Properties props = System.getProperties();
-		props.setProperty("mail.store.protocol", "imaps");
+		readEmails(getSession());
+	}
+
+	/**
+	 * Read emails using the specified session, the session must be able to
+	 * provide a store for the configured protocol. This allows for reading
+	 * from a session with an alternate store provider registered.
+	 * 
+	 * @param session
+	 *            the session to use to connect to the store
+	 */
+	public void readEmails(Session session) {
+		log.info("getEmail");
+		try {
+			openOutput();
+		} catch (IOException e) {
+			log.error("Exception opening the output directory", e);
+			return;
+		}
 		try {
+			if (SOURCE_IMAP.equalsIgnoreCase(config.getSource())) {
+				readFolder(session);
+			} else {
+				readSource(session);
+			}
+		} finally {
+			closeOutput();
+		}
+	}
 
-			Session session = Session.getDefaultInstance(props, null);
-			Store store = session.getStore("imaps");
-			log.info("Connecting to {} with user {}", config.getUrl(),
-					config.getUsername());
-			store.connect(config.getUrl(), config.getUsername(),
-					config.getPassword());
-			Folder folder = store.getFolder(config.getFolder());
-			folder.open(Folder.READ_ONLY);
+	/**
+	 * Reads the emails from the configured folder, splitting the messages
+	 * into a partition per connection.
+	 * 
+	 * @param session
+	 *            the session to use to connect to the store
+	 */
+	private void readFolder(Session session) {
+		log.trace("readFolder");
+		FolderConnection[] connections = new FolderConnection[Math.max(
+				config.getConnections(), 1)];
+		for (int i = 0; i < connections.length; i++) {
+			connections[i] = new FolderConnection(session, config,
+					"connection-" + (i + 1));
+		}
+		try {
+			Folder folder = connections[0].getFolder();
 
+			UIDFolder uidFolder = null;
+			if (folder instanceof UIDFolder) {
+				uidFolder = (UIDFolder) folder;
+			}
+			long uidValidity = -1;
+			long lastUid = 0;
 			Message[] messages = null;
-			if (config.getSearchSubject() != null) {
-				log.debug("Searching for messages with subject {}",
-						config.getSearchSubject());
-				SubjectTerm subjectTerm = new SubjectTerm(
-						config.getSearchSubject());
-				messages = folder.search(subjectTerm);
+			if (syncState != null && uidFolder != null) {
+				uidValidity = uidFolder.getUIDValidity();
+				if (uidValidity == syncState.getUidValidity(folder
+						.getFullName())) {
+					lastUid = syncState.getLastUid(folder.getFullName());
+				} else {
+					log.info("UIDVALIDITY of {} has changed, synchronizing all messages",
+							folder.getFullName());
+				}
+				log.debug("Loading messages after UID {}", lastUid);
+				messages = getMessagesAfter(uidFolder, lastUid);
 			} else {
 				messages = folder.getMessages();
 			}
+			long maxUid = lastUid;
+			if (uidFolder != null && messages.length > 0) {
+				folder.fetch(messages, UID_PROFILE);
+				maxUid = uidFolder.getUID(messages[messages.length - 1]);
+			}
 
-			log.debug("Loading messages from the server");
+			if (searchTerm != null && messages.length > 0) {
+				log.debug("Searching for messages matching the search criteria");
+				messages = folder.search(searchTerm, messages);
+				log.debug("Found {} matching messages", messages.length);
+			}
+
+			long[] ids = new long[messages.length];
 			for (int i = 0; i < messages.length; i++) {
-				String id = (i + " of " + messages.length);
-				log.info("Processing message {}", id);
-				Message message = messages[i];
-				if (!folder.isOpen()) {
-					folder.open(Folder.READ_ONLY);
-				}
-				try {
-					id = READABLE_DATE_FORMAT.format(message.getSentDate());
-					saveMessage(session, message);
-				} catch (Exception e) {
-					log.error("Exception saving message: " + id, e);
+				ids[i] = uidFolder != null ? uidFolder.getUID(messages[i])
+						: messages[i].getMessageNumber();
+			}
+			SyncState.Tracker tracker = null;
+			if (syncState != null && uidFolder != null) {
+				tracker = syncState.track(folder.getFullName(), uidValidity,
+						lastUid, maxUid, ids);
+			}
+
+			log.debug("Loading messages from the server");
+			PipelineHandler handler = new PipelineHandler(session,
+					uidFolder != null, tracker);
+			MessagePipeline pipeline = new MessagePipeline(handler,
+					config.getWorkerThreads(), config.getQueueSize());
+			long start = System.currentTimeMillis();
+			AtomicInteger submitted = new AtomicInteger();
+			int partitionSize = (ids.length + connections.length - 1)
+					/ connections.length;
+			List<Thread> fetchers = new ArrayList<Thread>();
+			List<PartitionFetcher> partitionFetchers = new ArrayList<PartitionFetcher>();
+			for (int i = 0; i < connections.length; i++) {
+				int from = Math.min(i * partitionSize, ids.length);
+				int to = Math.min(from + partitionSize, ids.length);
+				if (from == to) {
+					continue;
 				}
+				long[] partition = new long[to - from];
+				System.arraycopy(ids, from, partition, 0, partition.length);
+				PartitionFetcher partitionFetcher = new PartitionFetcher(
+						connections[i], pipeline, handler, tracker,
+						uidFolder != null, partition, submitted, ids.length);
+				partitionFetchers.add(partitionFetcher);
+				Thread fetcher = new Thread(partitionFetcher,
+						"email2html-fetch-" + (i + 1));
+				fetcher.start();
+				fetchers.add(fetcher);
+			}
+			boolean complete = true;
+			for (Thread fetcher : fetchers) {
+				fetcher.join();
+			}
+			for (PartitionFetcher fetcher : partitionFetchers) {
+				complete &= fetcher.complete;
+			}
+			pipeline.finish();
+			if (tracker != null) {
+				tracker.save();
 			}
+			if (journal != null && complete) {
+				journal.clear();
+			}
+			long duration = Math.max(System.currentTimeMillis() - start, 1);
+			log.info(
+					"Processed {} messages in {}ms ({} messages/sec) with fetch size {} over {} connections",
+					new Object[] { ids.length, duration,
+							(ids.length * 1000L) / duration,
+							config.getFetchSize(), fetchers.size() });
+			outputWriter.logMetrics();
 			if (config.getHookObj() != null) {
 				config.getHookObj().afterComplete();
 			}
 		} catch (MessagingException e) {
 			log.error("Exception accessing emails", e);
+		} catch (IOException e) {
+			log.error("Exception saving sync state", e);
+		} catch (InterruptedException e) {
+			log.error("Interrupted while processing emails", e);
+			Thread.currentThread().interrupt();
+		} finally {
+			for (FolderConnection connection : connections) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Creates the source for reading messages from the configured source
+	 * path.
+	 * 
+	 * @param session
+	 *            the session in which to create the messages
+	 * @return the message source
+	 * @throws IOException
+	 */
+	private MessageSource createMessageSource(Session session)
+			throws IOException {
+		File path = new File(config.getSourcePath());
+		if (SOURCE_MBOX.equalsIgnoreCase(config.getSource())) {
+			return new MboxMessageSource(path, session);
+		} else if (SOURCE_MAILDIR.equalsIgnoreCase(config.getSource())) {
+			return new MaildirMessageSource(path, session);
+		} else if (SOURCE_EML.equalsIgnoreCase(config.getSource())) {
+			return new EmlDirectoryMessageSource(path, session);
+		} else {
+			throw new IllegalArgumentException("Unknown source: "
+					+ config.getSource());
+		}
+	}
+
+	/**
+	 * Gets the messages in the folder with a UID greater than the specified
+	 * UID. The server will always return the last message for an open ended
+	 * UID range, so that message is removed if it has already been
+	 * processed.
+	 * 
+	 * @param folder
+	 *            the folder from which to retrieve the messages
+	 * @param lastUid
+	 *            the last UID which has been processed
+	 * @return the new messages
+	 * @throws MessagingException
+	 */
+	private Message[] getMessagesAfter(UIDFolder folder, long lastUid)
+			throws MessagingException {
+		log.trace("getMessagesAfter");
+		Message[] messages = folder.getMessagesByUID(lastUid + 1,
+				UIDFolder.LASTUID);
+		List<Message> newMessages = new ArrayList<Message>();
+		for (Message message : messages) {
+			if (message != null && folder.getUID(message) > lastUid) {
+				newMessages.add(message);
+			}
+		}
+		log.debug("Found {} new messages", newMessages.size());
+		return newMessages.toArray(new Message[newMessages.size()]);
+	}
+
+	/**
+	 * Gets the default session for connecting to the configured store.
+	 * 
+	 * @return the session
+	 */
+	public Session getSession() {
+		Properties props = System.getProperties();
+		props.setProperty("mail.store.protocol", config.getProtocol());
+		return Session.getDefaultInstance(props, null);
+	}
+
+	/**
+	 * Gets the key identifying the message in the journal, the folder,
+	 * UIDVALIDITY and UID for messages in a folder supporting UIDs, otherwise
+	 * the message ID.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return the message key
+	 * @throws MessagingException
+	 */
+	private String getMessageKey(Message message) throws MessagingException {
+		Folder folder = message.getFolder();
+		if (folder instanceof UIDFolder) {
+			return getMessageKey(folder, ((UIDFolder) folder).getUID(message));
+		}
+		String key = null;
+		if (message instanceof MimeMessage) {
+			key = ((MimeMessage) message).getMessageID();
+		}
+		if (key == null) {
+			Date sent = message.getSentDate();
+			key = (sent != null ? sent.getTime() : 0) + ":"
+					+ message.getSubject();
+		}
+		return key.replaceAll("\\s", "_");
+	}
+
+	/**
+	 * Gets the key identifying the message with the specified UID in the
+	 * journal.
+	 * 
+	 * @param folder
+	 *            the folder containing the message
+	 * @param uid
+	 *            the message UID
+	 * @return the message key
+	 * @throws MessagingException
+	 */
+	private String getMessageKey(Folder folder, long uid)
+			throws MessagingException {
+		return folder.getFullName() + ":"
+				+ ((UIDFolder) folder).getUIDValidity() + ":" + uid;
+	}
+
+	/**
+	 * Checks whether the journal recorded the message as complete in the run
+	 * being resumed.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return true if the message is complete
+	 * @throws MessagingException
+	 */
+	private boolean isDone(Message message) throws MessagingException {
+		return journal != null && journal.isDone(getMessageKey(message));
+	}
+
+	/**
+	 * Records that the message has completed a step in the journal.
+	 * 
+	 * @param key
+	 *            the key of the message in the journal, null if there is no
+	 *            journal
+	 * @param step
+	 *            the completed step
+	 */
+	private void record(String key, Journal.Step step) {
+		if (journal != null) {
+			journal.record(key, step);
+		}
+	}
+
+	/**
+	 * Gets a description of the message for logging, the sent date if
+	 * available, otherwise the message number.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return the description
+	 */
+	private String describe(Message message) {
+		try {
+			return READABLE_DATE_FORMAT.format(message.getSentDate());
+		} catch (Exception e) {
+			return String.valueOf(message.getMessageNumber());
+		}
+	}
+
+	/**
+	 * Publishes the message read from the source message, invoking the hook
+	 * and writing the message if needed.
+	 * 
+	 * @param message
+	 *            the source message
+	 * @param emailMessage
+	 *            the message read from the source message
+	 * @param key
+	 *            the key of the message in the journal
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws MessagingException
+	 */
+	private void publishMessage(Message message, EmailMessage emailMessage,
+			String key) throws IOException, MessagingException {
+		log.trace("publishMessage");
+		boolean write = true;
+		if (config.getHookObj() != null) {
+			write = config.getHookObj().afterRead(message, emailMessage);
+		}
+
+		if (write) {
+			boolean alreadyExists = outputWriter.fileExists(emailMessage);
+			if (overwrite || !alreadyExists) {
+				outputWriter.writeHTML(emailMessage);
+				record(key, Journal.Step.HTML);
+			} else {
+				log.debug("Message already exists, not writing");
+			}
+		}
+		record(key, Journal.Step.DONE);
+	}
+
+	/**
+	 * Reads the emails from the configured message source rather than from a
+	 * mail server. The source is split into a partition for each connection,
+	 * each of which is read concurrently.
+	 * 
+	 * @param session
+	 *            the session in which to create the messages
+	 */
+	private void readSource(Session session) {
+		log.trace("readSource");
+		MessageSource source = null;
+		List<MessageSource> partitions = new ArrayList<MessageSource>();
+		try {
+			log.info("Reading {} messages from {}", config.getSource(),
+					config.getSourcePath());
+			source = createMessageSource(session);
+			partitions = source.split(Math.max(config.getConnections(), 1));
+
+			MessagePipeline pipeline = new MessagePipeline(new PipelineHandler(
+					session, false, null), config.getWorkerThreads(),
+					config.getQueueSize());
+			long start = System.currentTimeMillis();
+			AtomicInteger submitted = new AtomicInteger();
+			List<Thread> fetchers = new ArrayList<Thread>();
+			List<SourceFetcher> sourceFetchers = new ArrayList<SourceFetcher>();
+			for (MessageSource partition : partitions) {
+				SourceFetcher sourceFetcher = new SourceFetcher(partition,
+						pipeline, submitted);
+				sourceFetchers.add(sourceFetcher);
+				Thread fetcher = new Thread(sourceFetcher, "email2html-fetch-"
+						+ (fetchers.size() + 1));
+				fetcher.start();
+				fetchers.add(fetcher);
+			}
+			boolean complete = true;
+			for (Thread fetcher : fetchers) {
+				fetcher.join();
+			}
+			for (SourceFetcher fetcher : sourceFetchers) {
+				complete &= fetcher.complete;
+			}
+			pipeline.finish();
+			if (journal != null && complete) {
+				journal.clear();
+			}
+			long duration = Math.max(System.currentTimeMillis() - start, 1);
+			log.info(
+					"Processed {} messages in {}ms ({} messages/sec) over {} partitions",
+					new Object[] { submitted.get(), duration,
+							(submitted.get() * 1000L) / duration,
+							fetchers.size() });
+			outputWriter.logMetrics();
+			if (config.getHookObj() != null) {
+				config.getHookObj().afterComplete();
+			}
+		} catch (IOException e) {
+			log.error("Exception reading messages from "
+					+ config.getSourcePath(), e);
+		} catch (InterruptedException e) {
+			log.error("Interrupted while processing emails", e);
+			Thread.currentThread().interrupt();
+		} finally {
+			for (MessageSource partition : partitions) {
+				partition.close();
+			}
+			if (source != null) {
+				source.close();
+			}
 		}
 	}
 
 	/**
-	 * Save message.
+	 * Reads the message, loading the message content and writing the
+	 * attachments. Returns once the renditions of the attachments have been
+	 * created.
 	 * 
+	 * @param session
+	 *            the current session
 	 * @param message
 	 *            the message
-	 * @param outputDir
-	 *            the output dir
-	 * @param templateStr
-	 *            the template str
+	 * @param key
+	 *            the key of the message in the journal
+	 * @return the message read from the source message
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 * @throws MessagingException
 	 *             the messaging exception
+	 * @throws InterruptedException
 	 */
-	private void saveMessage(Session session, Message message)
-			throws IOException, MessagingException {
-		log.trace("saveMessage");
+	private EmailMessage readMessage(Session session, Message message,
+			String key) throws IOException, MessagingException,
+			InterruptedException {
+		log.trace("readMessage");
 
 		log.debug("Processing message from: " + message.getSentDate());
 
@@ -333,6 +894,7 @@ public class EmailReader {
 		emailMessage.setSubject(message.getSubject());
 		emailMessage.setSender(getSender(message));
 		emailMessage.setSentDate(message.getSentDate());
+		record(key, Journal.Step.FETCHED);
 
 		log.debug("Loading message content");
 		try {
@@ -343,47 +905,751 @@ public class EmailReader {
 							+ me, me);
 
 			log.debug("Attempting to re-parse message");
-			MimeMessage msg = (MimeMessage) message;
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			msg.writeTo(bos);
-			bos.close();
-			SharedByteArrayInputStream bis = new SharedByteArrayInputStream(
-					bos.toByteArray());
-			MimeMessage clonedMessage = new MimeMessage(session, bis);
-			bis.close();
+			reparseMessage(session, (MimeMessage) message, emailMessage);
+		}
+		record(key, Journal.Step.ATTACHMENTS);
+		outputWriter.awaitRenditions(emailMessage);
+		record(key, Journal.Step.RENDITIONS);
+		return emailMessage;
+	}
+
+	/**
+	 * Re-parses the message from its raw content. Messages up to the spool
+	 * threshold are buffered in memory, larger messages (or messages of
+	 * unknown size) are spooled to a temporary file, so the heap used does
+	 * not grow with the size of the message.
+	 * 
+	 * @param session
+	 *            the current session
+	 * @param message
+	 *            the message to re-parse
+	 * @param emailMessage
+	 *            the message to populate
+	 * @throws IOException
+	 * @throws MessagingException
+	 */
+	private void reparseMessage(Session session, MimeMessage message,
+			EmailMessage emailMessage) throws IOException, MessagingException {
+		log.trace("reparseMessage");
+		int size = message.getSize();
+		if (size >= 0 && size <= config.getSpoolThreshold()) {
+			log.debug("Buffering message of {} bytes in memory", size);
+			SpoolBuffer buffer = new SpoolBuffer(size);
+			message.writeTo(buffer);
+			MimeMessage clonedMessage = new MimeMessage(session,
+					buffer.toInputStream());
 			getMessageContent(emailMessage, clonedMessage);
+		} else {
+			File spool = File.createTempFile("email2html-", ".eml");
+			log.debug("Spooling message of {} bytes to {}", size, spool);
+			SharedFileInputStream sis = null;
+			try {
+				OutputStream os = new BufferedOutputStream(
+						new FileOutputStream(spool));
+				try {
+					message.writeTo(os);
+				} finally {
+					os.close();
+				}
+				sis = new SharedFileInputStream(spool);
+				MimeMessage clonedMessage = new MimeMessage(session, sis);
+				getMessageContent(emailMessage, clonedMessage);
+			} finally {
+				IOUtils.closeQuietly(sis);
+				if (!spool.delete()) {
+					log.warn("Unable to delete spool file {}", spool);
+					spool.deleteOnExit();
+				}
+			}
 		}
-		boolean write = true;
-		if (config.getHookObj() != null) {
-			write = config.getHookObj().afterRead(message, emailMessage);
+	}
+
+	/**
+	 * Stops watching the folder for new messages, any messages already being
+	 * processed will still be written. The folder is left open for them, the
+	 * wait for new messages is ended and the watcher closes the folder once
+	 * they have been written.
+	 */
+	public void stop() {
+		log.info("Stopping");
+		watching = false;
+		CountDownLatch stopped = watchStopped;
+		if (stopped != null) {
+			stopped.countDown();
 		}
+		IMAPFolder folder = idleFolder;
+		if (folder != null) {
+			noop(folder);
+		}
+	}
 
-		if (write) {
-			boolean alreadyExists = outputWriter.fileExists(emailMessage);
-			if (overwrite || !alreadyExists) {
-				outputWriter.writeHTML(emailMessage);
-			} else {
-				log.debug("Message already exists, not writing");
+	/**
+	 * Watches the folder for new messages, processing them as they arrive
+	 * until stopped. Servers which support IMAP IDLE notify the watcher of new
+	 * messages, otherwise the folder is polled. The connection is kept alive
+	 * and is reconnected if it is lost.
+	 * 
+	 * @param session
+	 *            the session to use to connect to the store
+	 */
+	public void watch(Session session) {
+		log.info("watch");
+		if (!SOURCE_IMAP.equalsIgnoreCase(config.getSource())) {
+			log.warn("Only IMAP sources can be watched for new messages");
+			return;
+		}
+		try {
+			openOutput();
+		} catch (IOException e) {
+			log.error("Exception opening the output directory", e);
+			return;
+		}
+		watching = true;
+		watchStopped = new CountDownLatch(1);
+		FolderConnection connection = new FolderConnection(session, config,
+				"watcher");
+		ScheduledExecutorService keepAlive = Executors
+				.newSingleThreadScheduledExecutor(new MessagePipeline.NamedThreadFactory(
+						"email2html-keepalive"));
+		long lastUid = -1;
+		long uidValidity = -1;
+		try {
+			while (watching) {
+				try {
+					Folder folder = connection.getFolder();
+					if (!(folder instanceof UIDFolder)) {
+						log.error("Folder {} does not support UIDs, unable to watch",
+								folder.getFullName());
+						return;
+					}
+					UIDFolder uidFolder = (UIDFolder) folder;
+					if (uidValidity != uidFolder.getUIDValidity()) {
+						uidValidity = uidFolder.getUIDValidity();
+						lastUid = getWatchStart(folder, uidValidity);
+						log.info("Watching {} for messages after UID {}",
+								folder.getFullName(), lastUid);
+					}
+
+					lastUid = processNewMessages(session, folder, uidValidity,
+							lastUid);
+
+					if (folder instanceof IMAPFolder
+							&& ((IMAPStore) folder.getStore())
+									.hasCapability("IDLE")) {
+						final IMAPFolder imapFolder = (IMAPFolder) folder;
+						ScheduledFuture<?> noop = keepAlive.schedule(
+								new Runnable() {
+									public void run() {
+										noop(imapFolder);
+									}
+								}, config.getKeepAliveInterval(),
+								TimeUnit.SECONDS);
+						idleFolder = imapFolder;
+						try {
+							if (watching) {
+								log.debug("Waiting for new messages");
+								imapFolder.idle(true);
+							}
+						} finally {
+							idleFolder = null;
+							noop.cancel(false);
+						}
+					} else {
+						log.debug("Polling for new messages in {} seconds",
+								config.getPollInterval());
+						watchStopped.await(config.getPollInterval(),
+								TimeUnit.SECONDS);
+					}
+				} catch (MessagingException e) {
+					if (!watching) {
+						break;
+					}
+					log.warn("Exception watching folder, reconnecting", e);
+					connection.close();
+					watchStopped.await(config.getPollInterval(),
+							TimeUnit.SECONDS);
+				}
+			}
+		} catch (InterruptedException e) {
+			log.info("Interrupted while watching folder");
+			Thread.currentThread().interrupt();
+		} finally {
+			keepAlive.shutdownNow();
+			connection.close();
+			closeOutput();
+		}
+	}
+
+	/**
+	 * Gets the UID after which to start processing messages when watching a
+	 * folder. If the folder has been synchronized before, processing starts
+	 * after the last synchronized message, otherwise after the last message
+	 * currently in the folder.
+	 * 
+	 * @param folder
+	 *            the folder
+	 * @param uidValidity
+	 *            the UIDVALIDITY of the folder
+	 * @return the last UID which has been processed
+	 * @throws MessagingException
+	 */
+	private long getWatchStart(Folder folder, long uidValidity)
+			throws MessagingException {
+		if (syncState != null
+				&& syncState.getUidValidity(folder.getFullName()) == uidValidity) {
+			return syncState.getLastUid(folder.getFullName());
+		}
+		int count = folder.getMessageCount();
+		if (count == 0) {
+			return 0;
+		}
+		return ((UIDFolder) folder).getUID(folder.getMessage(count));
+	}
+
+	/**
+	 * Sends a NOOP on the folder, which ends the current IDLE command and
+	 * keeps the connection alive.
+	 * 
+	 * @param folder
+	 *            the folder
+	 */
+	private void noop(IMAPFolder folder) {
+		log.debug("Sending keep alive");
+		try {
+			folder.doCommand(new IMAPFolder.ProtocolCommand() {
+				public Object doCommand(IMAPProtocol protocol)
+						throws ProtocolException {
+					protocol.noop();
+					return null;
+				}
+			});
+		} catch (MessagingException e) {
+			log.warn("Exception sending keep alive", e);
+		}
+	}
+
+	/**
+	 * Processes the messages added to the folder after the specified UID,
+	 * waiting for them to be written and then invoking the hook's
+	 * afterComplete. A failure to save the sync state is logged rather than
+	 * thrown, so the watcher still moves past the processed messages.
+	 * 
+	 * @param session
+	 *            the current session
+	 * @param folder
+	 *            the folder
+	 * @param uidValidity
+	 *            the UIDVALIDITY of the folder
+	 * @param lastUid
+	 *            the last UID which has been processed
+	 * @return the last UID which has now been processed
+	 * @throws MessagingException
+	 * @throws InterruptedException
+	 */
+	private long processNewMessages(Session session, Folder folder,
+			long uidValidity, long lastUid) throws MessagingException,
+			InterruptedException {
+		UIDFolder uidFolder = (UIDFolder) folder;
+		Message[] messages = getMessagesAfter(uidFolder, lastUid);
+		if (messages.length == 0) {
+			return lastUid;
+		}
+		log.info("Found {} new messages", messages.length);
+		long maxUid = uidFolder.getUID(messages[messages.length - 1]);
+		if (searchTerm != null) {
+			messages = folder.search(searchTerm, messages);
+		}
+		folder.fetch(messages, FETCH_PROFILE);
+
+		long[] uids = new long[messages.length];
+		for (int i = 0; i < messages.length; i++) {
+			uids[i] = uidFolder.getUID(messages[i]);
+		}
+		SyncState.Tracker tracker = null;
+		if (syncState != null) {
+			tracker = syncState.track(folder.getFullName(), uidValidity,
+					lastUid, maxUid, uids);
+		}
+		MessagePipeline pipeline = new MessagePipeline(new PipelineHandler(
+				session, true, tracker), config.getWorkerThreads(),
+				config.getQueueSize());
+		for (Message message : messages) {
+			pipeline.submit(message);
+		}
+		pipeline.finish();
+		boolean saved = true;
+		if (tracker != null) {
+			try {
+				tracker.save();
+			} catch (IOException e) {
+				// the messages have been processed, so the watcher carries on
+				// from them and the journal is kept for the next run
+				log.error("Exception saving sync state", e);
+				saved = false;
 			}
 		}
+		if (journal != null && saved) {
+			journal.clear();
+		}
+		if (config.getHookObj() != null) {
+			config.getHookObj().afterComplete();
+		}
+		return maxUid;
 	}
 
 	/**
-	 * Trim message.
+	 * Trims the message at the earliest break string.
 	 * 
 	 * @param message
 	 *            the message
-	 * @return the string
+	 * @return the message up to the earliest break string
 	 */
 	private String trimMessage(String message) {
 		log.trace("trimMessage");
 
-		for (String breakString : breakStrings) {
-			int index = message.indexOf(breakString);
-			if (index != -1) {
-				message = message.substring(0, index);
+		int index = breakStrings.find(message);
+		return index != -1 ? message.substring(0, index) : message;
+	}
+
+	/**
+	 * Selects the text part used as the message body while the parts of the
+	 * message are walked, without loading the content of the parts. Text parts
+	 * are ranked by the position of their sub-type in the body preference,
+	 * followed by any other text sub-types, the first part of the best rank is
+	 * selected.
+	 */
+	private class BodySelection {
+
+		private Part part;
+
+		private int rank = Integer.MAX_VALUE;
+
+		private void offer(Part part, String subType) {
+			int rank = bodyPreference.length;
+			for (int i = 0; i < bodyPreference.length; i++) {
+				if (bodyPreference[i].equalsIgnoreCase(subType)) {
+					rank = i;
+					break;
+				}
+			}
+			if (rank < this.rank) {
+				log.debug("Selecting text part of type {}", subType);
+				this.part = part;
+				this.rank = rank;
+			}
+		}
+	}
+
+	/**
+	 * Handles the stages of the message pipeline for a run over a folder.
+	 * Messages fetched over a connection which may be reopened are tracked
+	 * with their UID, so a message whose folder was closed while it waited in
+	 * the pipeline is loaded again from the reopened folder.
+	 */
+	private class PipelineHandler implements MessagePipeline.Handler {
+
+		private final boolean byUid;
+
+		/**
+		 * The origin of the tracked messages, by the message submitted to the
+		 * pipeline.
+		 */
+		private final Map<Message, Origin> origins = new ConcurrentHashMap<Message, Origin>();
+
+		private final Session session;
+
+		private final SyncState.Tracker tracker;
+
+		private PipelineHandler(Session session, boolean byUid,
+				SyncState.Tracker tracker) {
+			this.session = session;
+			this.byUid = byUid;
+			this.tracker = tracker;
+		}
+
+		private void complete(Message message) {
+			release(message);
+			Origin origin = origins.remove(message);
+			if (tracker != null && origin != null) {
+				tracker.complete(origin.uid);
+			} else if (tracker != null && byUid) {
+				try {
+					tracker.complete(((UIDFolder) message.getFolder())
+							.getUID(message));
+				} catch (MessagingException e) {
+					log.warn("Unable to get UID of message: "
+							+ describe(message), e);
+				}
 			}
 		}
-		return message;
+
+		/**
+		 * Logs the failure, the message is not completed so the sync state
+		 * does not advance past it and it is retried by the next run.
+		 */
+		public void failed(Message message, Exception e) {
+			release(message);
+			origins.remove(message);
+			log.error("Exception saving message: " + describe(message), e);
+		}
+
+		/**
+		 * Gets the key of the message in the journal, tracked messages use the
+		 * key recorded when they were fetched so the folder is not needed.
+		 */
+		private String getKey(Message message) throws MessagingException {
+			Origin origin = origins.get(message);
+			if (origin != null) {
+				return origin.key;
+			}
+			return journal != null ? getMessageKey(message) : null;
+		}
+
+		public void publish(Message message, EmailMessage emailMessage)
+				throws Exception {
+			Origin origin = origins.get(message);
+			publishMessage(origin != null ? origin.message : message,
+					emailMessage, getKey(message));
+			complete(message);
+		}
+
+		/**
+		 * Releases the resources held by the message once it has been
+		 * processed, such as the file a message read from the file system
+		 * keeps open for its content.
+		 */
+		private void release(Message message) {
+			if (message instanceof Closeable) {
+				try {
+					((Closeable) message).close();
+				} catch (IOException e) {
+					log.warn("Exception releasing message: "
+							+ describe(message), e);
+				}
+			}
+		}
+
+		public EmailMessage read(Message message) throws Exception {
+			String key = getKey(message);
+			try {
+				return readMessage(session, resolve(message), key);
+			} catch (Exception e) {
+				Origin origin = origins.get(message);
+				if (origin == null || origin.message.getFolder().isOpen()) {
+					throw e;
+				}
+				log.warn("Connection lost while reading message {}, reloading it",
+						origin.uid);
+				return readMessage(session, resolve(message), key);
+			}
+		}
+
+		/**
+		 * Gets the current instance of the message, loading it again by its
+		 * UID if the folder it was loaded from has been closed.
+		 */
+		private Message resolve(Message message) throws MessagingException {
+			Origin origin = origins.get(message);
+			if (origin == null) {
+				return message;
+			}
+			if (!origin.message.getFolder().isOpen()) {
+				Folder folder = origin.connection.reopen(origin.message
+						.getFolder());
+				Message reloaded = ((UIDFolder) folder)
+						.getMessageByUID(origin.uid);
+				if (reloaded == null) {
+					throw new MessagingException("Message " + origin.uid
+							+ " no longer exists");
+				}
+				log.debug("Reloaded message {} from the reopened folder",
+						origin.uid);
+				origin.message = reloaded;
+			}
+			return origin.message;
+		}
+
+		/**
+		 * Tracks a message fetched by UID over the connection, so it can be
+		 * loaded again if the connection is reopened before it is read.
+		 */
+		private void track(Message message, long uid,
+				FolderConnection connection) throws MessagingException {
+			String key = journal != null ? getMessageKey(message.getFolder(),
+					uid) : null;
+			origins.put(message, new Origin(connection, message, uid, key));
+		}
+	}
+
+	/**
+	 * The connection, UID and journal key a message was fetched with, and the
+	 * instance of the message currently loaded.
+	 */
+	private static class Origin {
+
+		private final FolderConnection connection;
+
+		private final String key;
+
+		private volatile Message message;
+
+		private final long uid;
+
+		private Origin(FolderConnection connection, Message message, long uid,
+				String key) {
+			this.connection = connection;
+			this.message = message;
+			this.uid = uid;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Fetches a partition of the messages over its own connection and submits
+	 * them to the pipeline. The messages are loaded from the folder one chunk
+	 * at a time, so if the connection is lost it is reopened and the
+	 * remaining messages are loaded from the new connection.
+	 */
+	private class PartitionFetcher implements Runnable {
+
+		private final boolean byUid;
+
+		/**
+		 * Set once all of the messages in the partition have been submitted.
+		 */
+		private volatile boolean complete = false;
+
+		private final FolderConnection connection;
+
+		private final PipelineHandler handler;
+
+		private final long[] ids;
+
+		private final MessagePipeline pipeline;
+
+		private final AtomicInteger submitted;
+
+		private final int total;
+
+		private final SyncState.Tracker tracker;
+
+		private PartitionFetcher(FolderConnection connection,
+				MessagePipeline pipeline, PipelineHandler handler,
+				SyncState.Tracker tracker, boolean byUid, long[] ids,
+				AtomicInteger submitted, int total) {
+			this.connection = connection;
+			this.pipeline = pipeline;
+			this.handler = handler;
+			this.tracker = tracker;
+			this.byUid = byUid;
+			this.ids = ids;
+			this.submitted = submitted;
+			this.total = total;
+		}
+
+		private Message[] getMessages(Folder folder, long[] chunk)
+				throws MessagingException {
+			if (byUid) {
+				return ((UIDFolder) folder).getMessagesByUID(chunk);
+			} else {
+				int[] numbers = new int[chunk.length];
+				for (int i = 0; i < chunk.length; i++) {
+					numbers[i] = (int) chunk[i];
+				}
+				return folder.getMessages(numbers);
+			}
+		}
+
+		/**
+		 * Loads the messages of the chunk, prefetching them if a fetch size is
+		 * configured. If the connection is lost while loading the chunk, it is
+		 * reopened and the chunk is loaded again, up to the configured number
+		 * of reconnect attempts.
+		 */
+		private Message[] fetchChunk(Folder folder, long[] chunk)
+				throws MessagingException {
+			for (int attempt = 0;; attempt++) {
+				try {
+					Message[] messages = getMessages(folder, chunk);
+					if (config.getFetchSize() > 0) {
+						log.debug("Prefetching {} messages", messages.length);
+						folder.fetch(messages, FETCH_PROFILE);
+					}
+					if (!folder.isOpen()) {
+						// the folder is closed rather than failing the fetch
+						// when the connection drops
+						throw new FolderClosedException(folder,
+								"Connection lost while fetching messages");
+					}
+					return messages;
+				} catch (FolderClosedException e) {
+					if (attempt >= config.getReconnectAttempts()) {
+						throw e;
+					}
+					log.warn("Folder closed while fetching messages, retrying", e);
+				} catch (StoreClosedException e) {
+					if (attempt >= config.getReconnectAttempts()) {
+						throw e;
+					}
+					log.warn("Store closed while fetching messages, retrying", e);
+				}
+				folder = connection.reopen(folder);
+			}
+		}
+
+		/**
+		 * Removes the UIDs of the messages which were completed by the run
+		 * being resumed, so they are not downloaded again.
+		 */
+		private long[] skipDone(Folder folder, long[] chunk)
+				throws MessagingException {
+			List<Long> remaining = new ArrayList<Long>();
+			for (long uid : chunk) {
+				if (journal.isDone(getMessageKey(folder, uid))) {
+					log.debug("Message {} already processed", uid);
+					submitted.incrementAndGet();
+					if (tracker != null) {
+						tracker.complete(uid);
+					}
+				} else {
+					remaining.add(uid);
+				}
+			}
+			long[] uids = new long[remaining.size()];
+			for (int i = 0; i < uids.length; i++) {
+				uids[i] = remaining.get(i);
+			}
+			return uids;
+		}
+
+		public void run() {
+			int fetchSize = config.getFetchSize();
+			int chunkSize = fetchSize > 0 ? fetchSize : DEFAULT_CHUNK_SIZE;
+			try {
+				for (int i = 0; i < ids.length; i += chunkSize) {
+					long[] chunk = new long[Math.min(chunkSize, ids.length - i)];
+					System.arraycopy(ids, i, chunk, 0, chunk.length);
+
+					Folder folder = connection.getFolder();
+					if (byUid && journal != null) {
+						chunk = skipDone(folder, chunk);
+					}
+					Message[] messages = fetchChunk(folder, chunk);
+					if (tracker != null) {
+						tracker.save();
+					}
+					for (int j = 0; j < messages.length; j++) {
+						int count = submitted.incrementAndGet();
+						if (messages[j] == null) {
+							log.info("Message {} no longer exists", chunk[j]);
+							if (tracker != null) {
+								tracker.complete(chunk[j]);
+							}
+							continue;
+						}
+						if (!byUid && isDone(messages[j])) {
+							log.debug("Message {} already processed", count);
+							continue;
+						}
+						log.info("Processing message {}", count + " of "
+								+ total);
+						if (byUid) {
+							handler.track(messages[j], chunk[j], connection);
+						}
+						pipeline.submit(messages[j]);
+					}
+				}
+				complete = true;
+			} catch (MessagingException e) {
+				log.error("Exception fetching messages", e);
+			} catch (IOException e) {
+				log.error("Exception saving sync state", e);
+			} catch (InterruptedException e) {
+				log.error("Interrupted while fetching messages", e);
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Reads the messages from a partition of a message source and submits
+	 * them to the pipeline. As the messages are not on a server, the search
+	 * criteria are applied locally.
+	 */
+	private class SourceFetcher implements Runnable {
+
+		/**
+		 * Set once all of the messages in the partition have been submitted.
+		 */
+		private volatile boolean complete = false;
+
+		private final MessagePipeline pipeline;
+
+		private final MessageSource source;
+
+		private final AtomicInteger submitted;
+
+		private SourceFetcher(MessageSource source, MessagePipeline pipeline,
+				AtomicInteger submitted) {
+			this.source = source;
+			this.pipeline = pipeline;
+			this.submitted = submitted;
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					MimeMessage message;
+					try {
+						message = source.next();
+					} catch (MessagingException e) {
+						log.error("Exception parsing message", e);
+						continue;
+					}
+					if (message == null) {
+						break;
+					}
+					if (searchTerm != null && !searchTerm.match(message)) {
+						log.debug("Message {} does not match the search criteria",
+								describe(message));
+						continue;
+					}
+					try {
+						if (isDone(message)) {
+							log.debug("Message {} already processed",
+									describe(message));
+							continue;
+						}
+					} catch (MessagingException e) {
+						log.warn("Unable to get key for message: "
+								+ describe(message), e);
+					}
+					log.info("Processing message {}",
+							submitted.incrementAndGet());
+					pipeline.submit(message);
+				}
+				complete = true;
+			} catch (IOException e) {
+				log.error("Exception reading messages", e);
+			} catch (InterruptedException e) {
+				log.error("Interrupted while reading messages", e);
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Buffer for re-parsing messages in memory, the parsed message shares the
+	 * buffer rather than a copy of it.
+	 */
+	private static class SpoolBuffer extends ByteArrayOutputStream {
+
+		private SpoolBuffer(int size) {
+			super(Math.max(size, 32));
+		}
+
+		private SharedByteArrayInputStream toInputStream() {
+			return new SharedByteArrayInputStream(buf, 0, count);
+		}
 	}
 }
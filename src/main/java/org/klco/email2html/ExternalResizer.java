@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.klco.email2html.models.Rendition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates renditions with an external ImageMagick compatible command. The
+ * number of processes running at once is bounded, each process is killed if
+ * it does not finish within the timeout and its output is drained and logged
+ * if it fails. All of the renditions of an image are created by a single
+ * invocation of the command, within parentheses so the settings of each
+ * rendition only apply to that rendition.
+ * 
+ * @author dklco
+ */
+public class ExternalResizer {
+
+	/**
+	 * The maximum number of characters of output kept for logging.
+	 */
+	private static final int MAX_OUTPUT = 4096;
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory
+			.getLogger(ExternalResizer.class);
+
+	/**
+	 * The command and any leading arguments.
+	 */
+	private final String[] command;
+
+	/**
+	 * The permits for running processes.
+	 */
+	private final Semaphore processes;
+
+	private final long timeout;
+
+	/**
+	 * Kills the processes which exceed the timeout.
+	 */
+	private final ScheduledExecutorService watchdog;
+
+	/**
+	 * Creates a new external resizer.
+	 * 
+	 * @param command
+	 *            the command, split on whitespace into the executable and any
+	 *            leading arguments
+	 * @param maxProcesses
+	 *            the maximum number of processes running at once
+	 * @param timeout
+	 *            the maximum time each process may run in seconds
+	 */
+	public ExternalResizer(String command, int maxProcesses, int timeout) {
+		log.trace("ExternalResizer");
+		this.command = command.trim().split("\\s+");
+		this.processes = new Semaphore(Math.max(maxProcesses, 1), true);
+		this.timeout = timeout * 1000L;
+		this.watchdog = Executors
+				.newSingleThreadScheduledExecutor(new MessagePipeline.NamedThreadFactory(
+						"email2html-resizer-watchdog"));
+	}
+
+	/**
+	 * Builds the arguments for creating the renditions of the image with a
+	 * single invocation. Each rendition except the last is created from a
+	 * clone of the image, so every rendition is resized from the original.
+	 * 
+	 * @param source
+	 *            the image
+	 * @param renditions
+	 *            the renditions to create
+	 * @param targets
+	 *            the files to write the renditions to
+	 * @return the command and arguments
+	 */
+	public List<String> buildCommand(File source, Rendition[] renditions,
+			File[] targets) {
+		List<String> args = new ArrayList<String>(Arrays.asList(command));
+		args.add("-respect-parentheses");
+		args.add(source.getAbsolutePath());
+		args.add("-auto-orient");
+		for (int i = 0; i < renditions.length - 1; i++) {
+			args.add("(");
+			args.add("+clone");
+			addResize(args, renditions[i]);
+			args.add("-write");
+			args.add(getOutput(renditions[i], targets[i]));
+			args.add("+delete");
+			args.add(")");
+		}
+		addResize(args, renditions[renditions.length - 1]);
+		args.add(getOutput(renditions[renditions.length - 1],
+				targets[renditions.length - 1]));
+		return args;
+	}
+
+	/**
+	 * Creates the renditions of the image, waiting for a process to be
+	 * available if the maximum number are already running.
+	 * 
+	 * @param source
+	 *            the image
+	 * @param renditions
+	 *            the renditions to create
+	 * @param targets
+	 *            the files to write the renditions to
+	 * @throws IOException
+	 *             if the command could not be run, timed out or failed
+	 * @throws InterruptedException
+	 */
+	public void resize(File source, Rendition[] renditions, File[] targets)
+			throws IOException, InterruptedException {
+		log.trace("resize");
+		List<String> args = buildCommand(source, renditions, targets);
+		processes.acquire();
+		try {
+			log.debug("Running {}", StringUtils.join(args, " "));
+			final Process process = new ProcessBuilder(args)
+					.redirectErrorStream(true).start();
+			final AtomicBoolean timedOut = new AtomicBoolean();
+			ScheduledFuture<?> kill = watchdog.schedule(new Runnable() {
+				public void run() {
+					timedOut.set(true);
+					process.destroy();
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+			String output;
+			int exitCode;
+			try {
+				IOUtils.closeQuietly(process.getOutputStream());
+				output = drain(process.getInputStream());
+				exitCode = process.waitFor();
+			} catch (InterruptedException e) {
+				process.destroy();
+				throw e;
+			} finally {
+				kill.cancel(false);
+			}
+			if (timedOut.get()) {
+				throw new IOException("Resizing " + source.getName()
+						+ " timed out after " + (timeout / 1000) + "s: "
+						+ output);
+			}
+			if (exitCode != 0) {
+				throw new IOException("Resizing " + source.getName()
+						+ " failed with exit code " + exitCode + ": " + output);
+			}
+		} finally {
+			processes.release();
+		}
+	}
+
+	/**
+	 * Stops the watchdog.
+	 */
+	public void shutdown() {
+		watchdog.shutdownNow();
+	}
+
+	private void addResize(List<String> args, Rendition rendition) {
+		String geometry = rendition.getWidth() + "x" + rendition.getHeight();
+		args.add("-resize");
+		args.add(geometry);
+		if (rendition.getFill()) {
+			args.add("-background");
+			args.add("white");
+			args.add("-gravity");
+			args.add("center");
+			args.add("-extent");
+			args.add(geometry);
+		}
+		if (rendition.isStrip()) {
+			args.add("-strip");
+		}
+		if (rendition.getQuality() != -1) {
+			args.add("-quality");
+			args.add(String.valueOf(rendition.getQuality()));
+		}
+		if (rendition.isProgressive()) {
+			args.add("-interlace");
+			args.add("Plane");
+		}
+	}
+
+	/**
+	 * Gets the output argument for the rendition, prefixed with the format
+	 * when the rendition specifies one.
+	 */
+	private String getOutput(Rendition rendition, File target) {
+		if (rendition.getFormat() != null) {
+			return rendition.getFormat() + ":" + target.getAbsolutePath();
+		}
+		return target.getAbsolutePath();
+	}
+
+	/**
+	 * Reads all of the output of the process, so it does not block writing to
+	 * a full pipe, keeping the start of the output for logging.
+	 */
+	private String drain(InputStream in) throws IOException {
+		Reader reader = new InputStreamReader(in);
+		try {
+			StringBuilder output = new StringBuilder();
+			char[] buffer = new char[1024];
+			for (int read = reader.read(buffer); read != -1; read = reader
+					.read(buffer)) {
+				if (output.length() < MAX_OUTPUT) {
+					output.append(buffer, 0,
+							Math.min(read, MAX_OUTPUT - output.length()));
+				}
+			}
+			return output.toString().trim();
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+
+import org.klco.email2html.models.Email2HTMLConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A connection to the configured folder on the mail server. The store and
+ * folder are reconnected and reopened as needed each time the folder is
+ * retrieved.
+ * 
+ * @author dklco
+ */
+public class FolderConnection {
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory
+			.getLogger(FolderConnection.class);
+
+	/**
+	 * The base delay between reconnection attempts in milliseconds, each
+	 * subsequent attempt waits for one more multiple of this delay.
+	 */
+	private static final long RECONNECT_DELAY = 1000;
+
+	private final Email2HTMLConfiguration config;
+
+	private Folder folder;
+
+	private final String name;
+
+	private final Session session;
+
+	private Store store;
+
+	/**
+	 * Creates a new connection, the connection is not opened until the
+	 * folder is first retrieved.
+	 * 
+	 * @param session
+	 *            the session used to get the store
+	 * @param config
+	 *            the configuration
+	 * @param name
+	 *            the name used to identify the connection in the logs
+	 */
+	public FolderConnection(Session session, Email2HTMLConfiguration config,
+			String name) {
+		this.session = session;
+		this.config = config;
+		this.name = name;
+	}
+
+	/**
+	 * Closes the folder and the store.
+	 */
+	public synchronized void close() {
+		log.trace("close");
+		try {
+			if (folder != null && folder.isOpen()) {
+				folder.close(false);
+			}
+		} catch (MessagingException e) {
+			log.warn("Exception closing folder on connection " + name, e);
+		}
+		try {
+			if (store != null) {
+				store.close();
+			}
+		} catch (MessagingException e) {
+			log.warn("Exception closing store on connection " + name, e);
+		}
+		folder = null;
+		store = null;
+	}
+
+	/**
+	 * Gets the open folder, connecting to the store and opening the folder if
+	 * they have not been opened or were closed. Failures are retried up to the
+	 * configured number of reconnect attempts.
+	 * 
+	 * @return the open folder
+	 * @throws MessagingException
+	 *             the exception from the last attempt if the folder could not
+	 *             be opened
+	 */
+	public synchronized Folder getFolder() throws MessagingException {
+		MessagingException exception = null;
+		for (int attempt = 0; attempt <= config.getReconnectAttempts(); attempt++) {
+			if (attempt > 0) {
+				log.info("Reconnecting {}, attempt {}", name, attempt);
+				try {
+					Thread.sleep(RECONNECT_DELAY * attempt);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			try {
+				return open();
+			} catch (MessagingException e) {
+				log.warn("Exception opening folder on connection " + name, e);
+				exception = e;
+				close();
+			}
+		}
+		throw exception != null ? exception : new MessagingException(
+				"Unable to open folder on connection " + name);
+	}
+
+	/**
+	 * Reopens the connection after the folder was found to be closed. If the
+	 * connection was already reopened by another thread since the folder was
+	 * retrieved, the open folder is returned rather than closing it again.
+	 * 
+	 * @param closed
+	 *            the folder which was found to be closed
+	 * @return the open folder
+	 * @throws MessagingException
+	 *             the exception from the last attempt if the folder could not
+	 *             be opened
+	 */
+	public synchronized Folder reopen(Folder closed) throws MessagingException {
+		if (folder == closed) {
+			close();
+		}
+		return getFolder();
+	}
+
+	private Folder open() throws MessagingException {
+		if (store == null) {
+			store = session.getStore(config.getProtocol());
+		}
+		if (!store.isConnected()) {
+			log.info("Connecting {} to {} with user {}", new Object[] { name,
+					config.getUrl(), config.getUsername() });
+			store.connect(config.getUrl(), config.getUsername(),
+					config.getPassword());
+			folder = null;
+		}
+		if (folder == null) {
+			folder = store.getFolder(config.getFolder());
+		}
+		if (!folder.isOpen()) {
+			log.debug("Opening folder {} on connection {}", config.getFolder(),
+					name);
+			folder.open(Folder.READ_ONLY);
+		}
+		return folder;
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the progress of a run, used to resume a run which
+ * did not complete. Each message records the steps it has completed and each
+ * file records when writing it started and finished, so files left half
+ * written by a crashed run are detected and written again.
+ * 
+ * The journal is cleared once a run completes, so it is only ever read when
+ * resuming a run.
+ * 
+ * @author dklco
+ */
+public class Journal {
+
+	/**
+	 * The steps of processing a message, in the order they are completed.
+	 */
+	public enum Step {
+		/** The message has been retrieved. */
+		FETCHED,
+		/** All of the message's attachments have been written. */
+		ATTACHMENTS,
+		/** All of the renditions of the message's attachments were created. */
+		RENDITIONS,
+		/** The message HTML has been written. */
+		HTML,
+		/** The message is complete. */
+		DONE
+	}
+
+	/**
+	 * The name of the journal file within the output directory.
+	 */
+	public static final String FILE_NAME = ".email2html-journal";
+
+	/**
+	 * Record type for files which have finished being written.
+	 */
+	private static final String FILE_DONE = "FILE_DONE";
+
+	/**
+	 * Record type for files which have started being written.
+	 */
+	private static final String FILE_START = "FILE_START";
+
+	/**
+	 * The length recorded for files which have started, but not finished,
+	 * being written.
+	 */
+	private static final long INCOMPLETE = -1;
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory.getLogger(Journal.class);
+
+	private final File file;
+
+	/**
+	 * The files recorded in the journal, by path relative to the output
+	 * directory, mapped to their length once written.
+	 */
+	private final Map<String, Long> files = new HashMap<String, Long>();
+
+	/**
+	 * The last step completed by each message recorded in the journal.
+	 */
+	private final Map<String, Step> messages = new HashMap<String, Step>();
+
+	private final File outputDir;
+
+	private Writer writer;
+
+	/**
+	 * Opens the journal in the output directory, loading the records of a
+	 * previous run which did not complete.
+	 * 
+	 * @param outputDir
+	 *            the output directory
+	 * @throws IOException
+	 */
+	public Journal(File outputDir) throws IOException {
+		log.trace("Journal");
+		this.outputDir = outputDir;
+		this.file = new File(outputDir, FILE_NAME);
+		if (file.exists()) {
+			load();
+			log.info("Resuming incomplete run, {} messages already processed",
+					messages.size());
+		} else if (!outputDir.exists()) {
+			outputDir.mkdirs();
+		}
+		writer = new OutputStreamWriter(new FileOutputStream(file, true),
+				"UTF-8");
+	}
+
+	/**
+	 * Clears the journal, called once all of the messages in a run have been
+	 * processed.
+	 */
+	public synchronized void clear() {
+		log.trace("clear");
+		messages.clear();
+		files.clear();
+		try {
+			writer.close();
+			writer = new OutputStreamWriter(new FileOutputStream(file, false),
+					"UTF-8");
+		} catch (IOException e) {
+			log.warn("Exception clearing journal", e);
+		}
+	}
+
+	/**
+	 * Closes the journal.
+	 */
+	public synchronized void close() {
+		IOUtils.closeQuietly(writer);
+	}
+
+	/**
+	 * Records that the file has been completely written.
+	 * 
+	 * @param written
+	 *            the file
+	 */
+	public synchronized void finishFile(File written) {
+		String path = getPath(written);
+		files.put(path, written.length());
+		append(FILE_DONE, path, String.valueOf(written.length()));
+	}
+
+	/**
+	 * Gets the last step completed by the message in the current run.
+	 * 
+	 * @param key
+	 *            the key identifying the message
+	 * @return the last step or null if no step has been completed
+	 */
+	public synchronized Step getStep(String key) {
+		return messages.get(key);
+	}
+
+	/**
+	 * Checks whether the message was completely processed.
+	 * 
+	 * @param key
+	 *            the key identifying the message
+	 * @return true if the message is complete
+	 */
+	public synchronized boolean isDone(String key) {
+		Step step = messages.get(key);
+		return step == Step.HTML || step == Step.DONE;
+	}
+
+	/**
+	 * Checks whether the file was left incomplete, either because writing the
+	 * file did not finish or because it has changed since being written.
+	 * Files which are not recorded in the journal are not considered
+	 * incomplete.
+	 * 
+	 * @param check
+	 *            the file to check
+	 * @return true if the file is incomplete
+	 */
+	public synchronized boolean isIncomplete(File check) {
+		Long length = files.get(getPath(check));
+		return length != null
+				&& (length == INCOMPLETE || length != check.length());
+	}
+
+	/**
+	 * Records that the message has completed a step.
+	 * 
+	 * @param key
+	 *            the key identifying the message
+	 * @param step
+	 *            the completed step
+	 */
+	public synchronized void record(String key, Step step) {
+		messages.put(key, step);
+		append(step.name(), key, null);
+	}
+
+	/**
+	 * Records that writing the file has started.
+	 * 
+	 * @param written
+	 *            the file
+	 */
+	public synchronized void startFile(File written) {
+		String path = getPath(written);
+		files.put(path, INCOMPLETE);
+		append(FILE_START, path, null);
+	}
+
+	private void append(String type, String key, String value) {
+		try {
+			writer.write(type);
+			writer.write('\t');
+			writer.write(key);
+			if (value != null) {
+				writer.write('\t');
+				writer.write(value);
+			}
+			writer.write('\n');
+			writer.flush();
+		} catch (IOException e) {
+			log.warn("Exception writing to journal", e);
+		}
+	}
+
+	private String getPath(File written) {
+		String path = written.getAbsolutePath();
+		String base = outputDir.getAbsolutePath() + File.separator;
+		return path.startsWith(base) ? path.substring(base.length()) : path;
+	}
+
+	private void load() throws IOException {
+		log.debug("Loading journal from {}", file.getAbsolutePath());
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader
+					.readLine()) {
+				String[] record = line.split("\t");
+				if (record.length < 2) {
+					// the last line may have been cut off by the crash
+					continue;
+				}
+				if (FILE_START.equals(record[0])) {
+					files.put(record[1], INCOMPLETE);
+				} else if (FILE_DONE.equals(record[0]) && record.length == 3) {
+					files.put(record[1], Long.valueOf(record[2]));
+				} else {
+					try {
+						messages.put(record[1], Step.valueOf(record[0]));
+					} catch (IllegalArgumentException e) {
+						log.warn("Ignoring invalid journal record: {}", line);
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
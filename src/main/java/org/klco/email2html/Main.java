@@ -26,6 +26,10 @@ package org.klco.email2html;
 import java.io.File;
 import java.io.FileInputStream;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
 
 import org.klco.email2html.models.Email2HTMLConfiguration;
 import org.klco.email2html.utils.ConfigurationUtils;
@@ -61,10 +65,35 @@ public class Main {
 				File configFile = new File(args[0]);
 				
 				props.load(new FileInputStream(configFile.getAbsolutePath()));
-				Email2HTMLConfiguration config = ConfigurationUtils
+				final Email2HTMLConfiguration config = ConfigurationUtils
 						.loadProperties(props);
-				EmailReader reader = new EmailReader(config);
-				reader.readEmails();
+				final EmailReader reader = new EmailReader(config);
+				Session session = reader.getSession();
+				reader.readEmails(session);
+				if (config.isDaemon()) {
+					// the JVM exits once the hook returns, so wait for the
+					// messages being processed to be written
+					final CountDownLatch stopped = new CountDownLatch(1);
+					Runtime.getRuntime().addShutdownHook(new Thread() {
+						@Override
+						public void run() {
+							reader.stop();
+							try {
+								if (!stopped.await(config.getShutdownTimeout(),
+										TimeUnit.SECONDS)) {
+									log.warn("Timed out waiting for the messages being processed");
+								}
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+					});
+					try {
+						reader.watch(session);
+					} finally {
+						stopped.countDown();
+					}
+				}
 			} catch (Exception e) {
 				log.error("Unexpected exception loading emails", e);
 			}
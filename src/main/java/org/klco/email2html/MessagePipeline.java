@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+
+import org.klco.email2html.models.EmailMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Staged pipeline for processing messages. Messages are submitted by the
+ * fetching threads, read (parsed, sanitized and their attachments and
+ * renditions written) by a pool of workers and then published on a single
+ * thread in the order they were submitted. With a single fetching thread hook
+ * callbacks are invoked in message order, when several fetching threads
+ * submit concurrently only the messages of each thread stay in order.
+ * 
+ * The number of messages in flight is bounded by the queue size, once it is
+ * reached submitting blocks until the oldest message has been published.
+ * 
+ * @author dklco
+ */
+public class MessagePipeline {
+
+	/**
+	 * Callback for the stages of the pipeline.
+	 */
+	public interface Handler {
+
+		/**
+		 * Invoked on the publishing thread, in submission order, when a message
+		 * could not be read or published.
+		 * 
+		 * @param message
+		 *            the message
+		 * @param e
+		 *            the exception
+		 */
+		void failed(Message message, Exception e);
+
+		/**
+		 * Invoked on the publishing thread, in submission order, once the
+		 * message has been read.
+		 * 
+		 * @param message
+		 *            the source message
+		 * @param emailMessage
+		 *            the message read from the source message
+		 * @throws Exception
+		 */
+		void publish(Message message, EmailMessage emailMessage)
+				throws Exception;
+
+		/**
+		 * Invoked on a worker thread to read the message.
+		 * 
+		 * @param message
+		 *            the source message
+		 * @return the message read from the source message
+		 * @throws Exception
+		 */
+		EmailMessage read(Message message) throws Exception;
+	}
+
+	/**
+	 * A submitted message and the result of reading it.
+	 */
+	private static class Entry {
+		private final Future<EmailMessage> future;
+		private final Message message;
+
+		private Entry(Message message, Future<EmailMessage> future) {
+			this.message = message;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * Marker entry signaling the publisher that no more messages will be
+	 * submitted.
+	 */
+	private static final Entry END = new Entry(null, null);
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory
+			.getLogger(MessagePipeline.class);
+
+	private final Handler handler;
+
+	/**
+	 * The messages which have been submitted, but not yet published.
+	 */
+	private final BlockingQueue<Entry> pending;
+
+	private final Thread publisher;
+
+	private final ExecutorService workers;
+
+	/**
+	 * Creates and starts a new pipeline.
+	 * 
+	 * @param handler
+	 *            the handler for the pipeline stages
+	 * @param workerThreads
+	 *            the number of threads reading messages
+	 * @param queueSize
+	 *            the maximum number of messages in flight
+	 */
+	public MessagePipeline(Handler handler, int workerThreads, int queueSize) {
+		log.trace("MessagePipeline");
+		this.handler = handler;
+		this.pending = new ArrayBlockingQueue<Entry>(Math.max(queueSize, 1));
+		this.workers = Executors.newFixedThreadPool(
+				Math.max(workerThreads, 1), new NamedThreadFactory(
+						"email2html-worker"));
+		this.publisher = new Thread(new Runnable() {
+			public void run() {
+				publish();
+			}
+		}, "email2html-publisher");
+		publisher.start();
+	}
+
+	/**
+	 * Waits for all of the submitted messages to be published and shuts down
+	 * the pipeline.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void finish() throws InterruptedException {
+		log.trace("finish");
+		pending.put(END);
+		publisher.join();
+		workers.shutdown();
+	}
+
+	private void publish() {
+		log.trace("publish");
+		while (true) {
+			Entry entry;
+			try {
+				entry = pending.take();
+			} catch (InterruptedException e) {
+				log.warn("Interrupted waiting for messages to publish");
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (entry == END) {
+				return;
+			}
+			try {
+				handler.publish(entry.message, entry.future.get());
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					handler.failed(entry.message, (Exception) e.getCause());
+				} else {
+					handler.failed(entry.message, e);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				handler.failed(entry.message, e);
+				return;
+			} catch (Exception e) {
+				handler.failed(entry.message, e);
+			}
+		}
+	}
+
+	/**
+	 * Submits the message to the pipeline, blocking if the maximum number of
+	 * messages are in flight.
+	 * 
+	 * @param message
+	 *            the message to process
+	 * @throws InterruptedException
+	 */
+	public void submit(final Message message) throws InterruptedException {
+		log.trace("submit");
+		Future<EmailMessage> future = workers
+				.submit(new Callable<EmailMessage>() {
+					public EmailMessage call() throws Exception {
+						return handler.read(message);
+					}
+				});
+		pending.put(new Entry(message, future));
+	}
+
+	/**
+	 * Names the pipeline threads so they can be identified in the logs and
+	 * thread dumps.
+	 */
+	static class NamedThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		private final String prefix;
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -21,80 +21,156 @@
  */
 package org.klco.email2html;
 
-import java.awt.Color;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.Normalizer;
-import java.text.SimpleDateFormat;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.zip.CRC32;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.MessagingException;
 import javax.mail.Part;
 
-import net.coobird.thumbnailator.Thumbnails;
-import net.coobird.thumbnailator.filters.Canvas;
-import net.coobird.thumbnailator.geometry.Positions;
-
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.text.StrSubstitutor;
+import org.apache.commons.lang.time.FastDateFormat;
 import org.klco.email2html.models.Email2HTMLConfiguration;
 import org.klco.email2html.models.EmailMessage;
+import org.klco.email2html.models.ImageInfo;
 import org.klco.email2html.models.Rendition;
+import org.klco.email2html.utils.CopyUtils;
+import org.klco.email2html.utils.ImageProbe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Class for writing output from the email messages to the filesystem.
+ * Class for writing output from the email messages to the filesystem. A single
+ * instance may be shared by multiple threads, writes to the same attachment
+ * folder or message file are serialized.
  * 
  * @author dklco
  */
 public class OutputWriter {
 
+	/**
+	 * Value of fsync for syncing the pages and the messages folder to disk
+	 * after each page is written.
+	 */
+	public static final String FSYNC_ALL = "all";
+
+	/**
+	 * Value of fsync for syncing each page to disk before it is renamed into
+	 * place.
+	 */
+	public static final String FSYNC_FILE = "file";
+
+	/**
+	 * Value of fsync for leaving the pages to be flushed to disk by the
+	 * operating system.
+	 */
+	public static final String FSYNC_NONE = "none";
+
 	/** The Constant FILE_DATE_FORMAT. */
-	private static final SimpleDateFormat FILE_DATE_FORMAT = new SimpleDateFormat(
-			"yyyy-MM-dd-HH-mm-ss");
+	private static final FastDateFormat FILE_DATE_FORMAT = FastDateFormat
+			.getInstance("yyyy-MM-dd-HH-mm-ss");
+
+	/**
+	 * The number of locks used to serialize writes to the same folder.
+	 */
+	private static final int LOCK_STRIPES = 64;
 
 	/** The Constant log. */
 	private static final Logger log = LoggerFactory
 			.getLogger(OutputWriter.class);
 
 	/**
-	 * A set of the downloaded attachment checksums, can ensure each attachment
-	 * is only downloaded once
+	 * The locks for writing to folders, a folder is mapped to a lock by the
+	 * hash of its path.
 	 */
-	private Set<Long> attachmentChecksums = new HashSet<Long>();
+	private final Object[] folderLocks = new Object[LOCK_STRIPES];
 
 	/**
 	 * A flag for excluding duplicates, loaded from the configuration
 	 */
 	private boolean excludeDuplicates;
 
+	/**
+	 * When to flush written pages to disk.
+	 */
+	private String fsync;
+
 	/** The output dir. */
 	private File outputDir;
 
+	/**
+	 * The store holding the content of the attachments.
+	 */
+	private AttachmentStore store;
+
+	/**
+	 * The resizer for the renditions which are created externally, null if
+	 * there are none.
+	 */
+	private ExternalResizer externalResizer;
+
+	/**
+	 * The manifest of the renditions which have been created.
+	 */
+	private RenditionManifest manifest;
+
+	/**
+	 * The scheduler for creating renditions within the memory budget.
+	 */
+	private RenditionScheduler renditionScheduler;
+
+	/**
+	 * The names of the image renditions, in the order they are configured.
+	 */
+	private final List<String> renditionNames = new ArrayList<String>();
+
 	/**
 	 * The image renditions to create
 	 */
 	private Rendition[] renditions;
 
 	/**
-	 * The template content
+	 * The compiled template
 	 */
-	private String template;
+	private Template template;
 
 	private Email2HTMLConfiguration config;
 
+	/**
+	 * The journal of the current run, null if not journaling.
+	 */
+	private Journal journal;
+
+	/**
+	 * The number of pages which were not written as their content was
+	 * unchanged.
+	 */
+	private final AtomicInteger pagesUnchanged = new AtomicInteger();
+
+	/**
+	 * The number of pages written.
+	 */
+	private final AtomicInteger pagesWritten = new AtomicInteger();
+
 	/**
 	 * Constructs a new OutputWriter.
 	 * 
@@ -105,7 +181,24 @@ public class OutputWriter {
 	 */
 	public OutputWriter(Email2HTMLConfiguration config)
 			throws FileNotFoundException, IOException {
+		this(config, null);
+	}
+
+	/**
+	 * Constructs a new OutputWriter which records the files it writes in the
+	 * journal.
+	 * 
+	 * @param config
+	 *            the current configuration
+	 * @param journal
+	 *            the journal of the current run, may be null
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	public OutputWriter(Email2HTMLConfiguration config, Journal journal)
+			throws FileNotFoundException, IOException {
 		log.trace("HTMLWriter");
+		this.journal = journal;
 
 		outputDir = new File(config.getOutputDir());
 		log.info("Using output directory {}", outputDir.getAbsolutePath());
@@ -113,18 +206,63 @@ public class OutputWriter {
 			log.info("Creating ouput directory");
 			outputDir.mkdirs();
 		}
+		store = new AttachmentStore(outputDir);
 		if(StringUtils.isEmpty(config.getTemplate())){
 			throw new FileNotFoundException("No template file specified");
 		}
 		File templateFile = new File(config.getTemplate());
 		log.debug("Loading template from {}", templateFile.getAbsolutePath());
-		template = IOUtils.toString(
-				new FileInputStream(templateFile), "UTF-8");
+		InputStream is = null;
+		try {
+			is = new FileInputStream(templateFile);
+			template = new Template(IOUtils.toString(is, "UTF-8"));
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
 
-		this.renditions = config.getRenditions();
+		if (config.getRenditions() != null) {
+			for (Rendition rendition : config.getRenditions()) {
+				renditionNames.add(rendition.getName());
+			}
+			this.renditions = RenditionGenerator.sortLargestFirst(config
+					.getRenditions());
+		} else {
+			this.renditions = new Rendition[0];
+		}
+		manifest = new RenditionManifest(outputDir, renditions);
+		for (Rendition rendition : renditions) {
+			if (Rendition.RESIZER_EXTERNAL.equals(rendition.getResizer())) {
+				externalResizer = new ExternalResizer(
+						config.getResizerCommand(),
+						config.getResizerProcesses(), config.getResizerTimeout());
+				break;
+			}
+		}
+
+		long renditionMemory = config.getRenditionMemory() > 0 ? config
+				.getRenditionMemory() * 1024L * 1024L : Runtime.getRuntime()
+				.maxMemory() / 2;
+		int renditionThreads = config.getRenditionThreads() > 0 ? config
+				.getRenditionThreads() : Runtime.getRuntime()
+				.availableProcessors();
+		renditionScheduler = new RenditionScheduler(renditionThreads,
+				renditionMemory);
 
 		this.excludeDuplicates = config.isExcludeDuplicates();
 		this.config = config;
+
+		fsync = StringUtils.defaultIfEmpty(config.getFsync(), FSYNC_NONE)
+				.trim().toLowerCase();
+		if (!FSYNC_NONE.equals(fsync) && !FSYNC_FILE.equals(fsync)
+				&& !FSYNC_ALL.equals(fsync)) {
+			throw new IllegalArgumentException("Invalid fsync " + fsync
+					+ ", expected one of " + FSYNC_NONE + ", " + FSYNC_FILE
+					+ " or " + FSYNC_ALL);
+		}
+
+		for (int i = 0; i < folderLocks.length; i++) {
+			folderLocks[i] = new Object();
+		}
 	}
 
 	/**
@@ -148,47 +286,28 @@ public class OutputWriter {
 		File attachmentFile = new File(attachmentFolder, part.getFileName());
 
 		boolean addAttachment = true;
-		boolean writeAttachment = false;
-		if (!attachmentFolder.exists() || !attachmentFile.exists()) {
-			log.warn("Attachment or folder missing, writing attachment {}",
-					attachmentFile.getName());
-			writeAttachment = true;
-		}
-
-		if (!writeAttachment
-				&& part.getContentType().toLowerCase().startsWith("image")) {
-			for (Rendition rendition : renditions) {
-				File renditionFile = new File(attachmentFolder,
-						rendition.getName() + "-" + part.getFileName());
-				if (!renditionFile.exists()) {
-					log.warn("Rendition {} missing, writing attachment {}",
-							renditionFile.getName(), attachmentFile.getName());
-					writeAttachment = true;
-					break;
+		synchronized (getLock(attachmentFolder)) {
+			if (!attachmentFolder.exists() || !attachmentFile.exists()
+					|| isIncomplete(attachmentFile)) {
+				log.warn("Attachment or folder missing, writing attachment {}",
+						attachmentFile.getName());
+				addAttachment = writeAttachment(containingMessage,
+						attachmentFolder, part);
+			} else {
+				String hash = store.getHash(attachmentFile);
+				if (hash == null) {
+					log.debug("Adding existing attachment {} to the store",
+							attachmentFile.getName());
+					hash = store.store(attachmentFile);
+					link(hash, attachmentFile);
 				}
-			}
-		}
-		if (writeAttachment) {
-			addAttachment = writeAttachment(containingMessage, part);
-		} else {
-			if (this.excludeDuplicates) {
-				log.debug("Computing checksum");
-				InputStream is = null;
-				try {
-					CRC32 checksum = new CRC32();
-					is = new BufferedInputStream(new FileInputStream(
-							attachmentFile));
-					for (int read = is.read(); read != -1; read = is.read()) {
-						checksum.update(read);
-					}
-					long value = checksum.getValue();
-					if (attachmentChecksums.contains(value)) {
-						addAttachment = false;
-					} else {
-						attachmentChecksums.add(checksum.getValue());
-					}
-				} finally {
-					IOUtils.closeQuietly(is);
+				if (isDuplicate(hash, attachmentFile)) {
+					addAttachment = false;
+				} else if (isImage(part)) {
+					ImageInfo image = probeImage(containingMessage,
+							attachmentFile, null);
+					scheduleRenditions(containingMessage, attachmentFolder,
+							attachmentFile, hash, image);
 				}
 			}
 		}
@@ -199,6 +318,132 @@ public class OutputWriter {
 		}
 	}
 
+	/**
+	 * Gets the file the message is written to.
+	 * 
+	 * @param emailMessage
+	 *            the message
+	 * @return the message file
+	 */
+	private File getMessageFile(EmailMessage emailMessage) {
+		String name = String.format(config.getFileNameFormat(),
+				emailMessage.getSentDate(), toPath(emailMessage.getSubject()));
+		return new File(outputDir.getAbsolutePath() + File.separator
+				+ config.getMessagesSubDir() + File.separator + name);
+	}
+
+	/**
+	 * Gets the file the rendition of an image is written to.
+	 * 
+	 * @param attachmentFolder
+	 *            the folder containing the image
+	 * @param attachmentFile
+	 *            the image
+	 * @param rendition
+	 *            the rendition
+	 * @return the rendition file
+	 */
+	private File getRenditionFile(File attachmentFolder, File attachmentFile,
+			Rendition rendition) {
+		return new File(attachmentFolder,
+				rendition.getFileName(attachmentFile.getName()));
+	}
+
+	/**
+	 * Checks whether the journal recorded the file as not completely written.
+	 * 
+	 * @param file
+	 *            the file to check
+	 * @return true if the file is incomplete
+	 */
+	private boolean isIncomplete(File file) {
+		return journal != null && journal.isIncomplete(file);
+	}
+
+	/**
+	 * Gets the lock used to serialize writes to the specified folder.
+	 * 
+	 * @param folder
+	 *            the folder
+	 * @return the lock for the folder
+	 */
+	private Object getLock(File folder) {
+		int hash = folder.getAbsolutePath().hashCode();
+		return folderLocks[(hash & Integer.MAX_VALUE) % folderLocks.length];
+	}
+
+	/**
+	 * Checks whether the attachment should be excluded as a duplicate of
+	 * another attachment.
+	 * 
+	 * @param hash
+	 *            the hash of the attachment content
+	 * @param attachmentFile
+	 *            the attachment file
+	 * @return true if duplicates are excluded and the attachment is a
+	 *         duplicate
+	 */
+	private boolean isDuplicate(String hash, File attachmentFile) {
+		return excludeDuplicates && store.isDuplicate(hash, attachmentFile);
+	}
+
+	/**
+	 * Links the attachment file to its stored content, unless duplicates are
+	 * excluded and the content belongs to another attachment.
+	 * 
+	 * @param hash
+	 *            the hash of the attachment content
+	 * @param attachmentFile
+	 *            the attachment file
+	 * @return true if the file was linked
+	 * @throws IOException
+	 */
+	private boolean link(String hash, File attachmentFile) throws IOException {
+		if (excludeDuplicates) {
+			return store.linkUnlessDuplicate(hash, attachmentFile);
+		}
+		store.link(hash, attachmentFile);
+		return true;
+	}
+
+	/**
+	 * Waits for the renditions of the message's attachments to be created.
+	 * 
+	 * @param emailMessage
+	 *            the message
+	 * @throws InterruptedException
+	 */
+	public void awaitRenditions(EmailMessage emailMessage)
+			throws InterruptedException {
+		log.trace("awaitRenditions");
+		for (Future<Void> pending : emailMessage.getPendingRenditions()) {
+			try {
+				pending.get();
+			} catch (ExecutionException e) {
+				log.warn("Exception creating renditions", e.getCause());
+			}
+		}
+		emailMessage.getPendingRenditions().clear();
+	}
+
+	/**
+	 * Closes the writer, stopping the rendition threads and the external
+	 * resizer and closing the attachment store, the rendition manifest and
+	 * the journal. The writer cannot be used once it is closed.
+	 */
+	public void close() {
+		log.trace("close");
+		renditionScheduler.shutdown();
+		if (externalResizer != null) {
+			externalResizer.shutdown();
+		}
+		store.close();
+		manifest.close();
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
 	/**
 	 * Checks to see if a file exists for the specified message.
 	 * 
@@ -207,10 +452,8 @@ public class OutputWriter {
 	 * @return true if a file exists, false otherwise
 	 */
 	public boolean fileExists(EmailMessage emailMessage) {
-		File messageFile = new File(outputDir.getAbsolutePath()
-				+ File.separator
-				+ FILE_DATE_FORMAT.format(emailMessage.getSentDate()) + ".html");
-		return messageFile.exists();
+		File messageFile = getMessageFile(emailMessage);
+		return messageFile.exists() && !isIncomplete(messageFile);
 	}
 
 	/**
@@ -230,150 +473,391 @@ public class OutputWriter {
 			throws IOException, MessagingException {
 		log.trace("writeAttachment");
 
-		File attachmentFolder;
+		File attachmentFolder = new File(outputDir.getAbsolutePath()
+				+ File.separator + config.getImagesSubDir() + File.separator
+				+ FILE_DATE_FORMAT.format(containingMessage.getSentDate()));
+		synchronized (getLock(attachmentFolder)) {
+			return writeAttachment(containingMessage, attachmentFolder, part);
+		}
+	}
+
+	/**
+	 * Writes the attachment contained in the body part to a file in the
+	 * attachment folder, the caller must hold the lock for the folder. The
+	 * attachment is hashed as it is copied into the attachment store, so
+	 * duplicates are discarded before anything is written to the attachment
+	 * folder. The renditions of image attachments are scheduled and added to
+	 * the pending renditions of the message.
+	 * 
+	 * @param containingMessage
+	 *            the message this body part is contained within
+	 * @param attachmentFolder
+	 *            the folder to write the attachment to
+	 * @param part
+	 *            the part containing the attachment
+	 * @return true if the attachment was written, false if it was a duplicate
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws MessagingException
+	 *             the messaging exception
+	 */
+	private boolean writeAttachment(EmailMessage containingMessage,
+			File attachmentFolder, Part part) throws IOException,
+			MessagingException {
 		File attachmentFile;
-		InputStream in = null;
-		OutputStream out = null;
+		String hash;
+		ImageProbe.HeadInputStream in = null;
 		try {
+			attachmentFile = new File(attachmentFolder, part.getFileName());
+			in = new ImageProbe.HeadInputStream(part.getInputStream());
+
+			log.debug("Downloading attachment");
+			hash = store.store(in);
+			if (isDuplicate(hash, attachmentFile)) {
+				// nothing has been written to the attachment folder yet, and
+				// a file already at the path belongs to another message
+				log.info("Skipping duplicate attachment: {}",
+						part.getFileName());
+				return false;
+			}
 
-			attachmentFolder = new File(outputDir.getAbsolutePath()
-					+ File.separator + config.getImagesSubDir()
-					+ File.separator
-					+ FILE_DATE_FORMAT.format(containingMessage.getSentDate()));
+			boolean created = false;
 			if (!attachmentFolder.exists()) {
 				log.debug("Creating attachment folder");
-				attachmentFolder.mkdirs();
+				created = attachmentFolder.mkdirs();
 			}
-
-			attachmentFile = new File(attachmentFolder, part.getFileName());
 			log.debug("Writing attachment file: {}",
 					attachmentFile.getAbsolutePath());
-			if (!attachmentFile.exists()) {
-				attachmentFile.createNewFile();
+			if (journal != null) {
+				journal.startFile(attachmentFile);
 			}
+			boolean linked = link(hash, attachmentFile);
 
-			in = new BufferedInputStream(part.getInputStream());
-			out = new BufferedOutputStream(new FileOutputStream(attachmentFile));
-
-			log.debug("Downloading attachment");
-			CRC32 checksum = new CRC32();
-			for (int b = in.read(); b != -1; b = in.read()) {
-				checksum.update(b);
-				out.write(b);
+			if (journal != null) {
+				journal.finishFile(attachmentFile);
 			}
-
-			if (this.excludeDuplicates) {
-				log.debug("Computing checksum");
-				long value = checksum.getValue();
-				if (this.attachmentChecksums.contains(value)) {
-					log.info("Skipping duplicate attachment: {}",
-							part.getFileName());
-					attachmentFile.delete();
-					return false;
-				} else {
-					attachmentChecksums.add(value);
+			if (!linked) {
+				// another folder stored the same content concurrently
+				log.info("Skipping duplicate attachment: {}",
+						part.getFileName());
+				if (created) {
+					attachmentFolder.delete();
 				}
+				return false;
 			}
-
 			log.debug("Attachement saved");
 		} finally {
-			IOUtils.closeQuietly(out);
 			IOUtils.closeQuietly(in);
 		}
 
-		if (part.getContentType().toLowerCase().startsWith("image")) {
-			log.debug("Creating renditions");
-			String contentType = part.getContentType().substring(0,
-					part.getContentType().indexOf(";"));
-			log.debug("Creating renditions of type: " + contentType);
+		if (isImage(part)) {
+			ImageInfo image = probeImage(containingMessage, attachmentFile,
+					in.getHead());
+			scheduleRenditions(containingMessage, attachmentFolder,
+					attachmentFile, hash, image);
+		}
+		return true;
+	}
 
-			for (Rendition rendition : renditions) {
-				File renditionFile = new File(attachmentFolder,
-						rendition.getName() + "-" + part.getFileName());
-				try {
-					if (!renditionFile.exists()) {
-						renditionFile.createNewFile();
-					}
-					log.debug("Creating rendition file: {}",
-							renditionFile.getAbsolutePath());
-					createRendition(attachmentFile, renditionFile, rendition);
-					log.debug("Rendition created");
-				} catch (OutOfMemoryError oome) {
-					Runtime rt = Runtime.getRuntime();
-					rt.gc();
-					log.warn("Ran out of memory creating rendition: "
-							+ rendition, oome);
-
-					log.warn("Free Memory: {}", rt.freeMemory());
-					log.warn("Max Memory: {}", rt.maxMemory());
-					log.warn("Total Memory: {}", rt.totalMemory());
-
-					String[] command = null;
-					if (rendition.getFill()) {
-						command = new String[] {
-								"convert",
-								attachmentFile.getAbsolutePath(),
-								"-resize",
-								(rendition.getHeight() * 2) + "x",
-								"-resize",
-								"'x" + (rendition.getHeight() * 2) + "<'",
-								"-resize",
-								"50%",
-								"-gravity",
-								"center",
-								"-crop",
-								rendition.getHeight() + "x"
-										+ rendition.getWidth() + "+0+0",
-								"+repage",
-								renditionFile.getAbsolutePath() };
-					} else {
-						command = new String[] {
-								"convert",
-								attachmentFile.getAbsolutePath(),
-								"-resize",
-								rendition.getHeight() + "x"
-										+ rendition.getWidth(),
-								renditionFile.getAbsolutePath() };
+	/**
+	 * Checks whether the part is an image, from which renditions are created.
+	 * 
+	 * @param part
+	 *            the part
+	 * @return true if the part is an image
+	 * @throws MessagingException
+	 */
+	private boolean isImage(Part part) throws MessagingException {
+		return part.getContentType().toLowerCase().startsWith("image");
+	}
 
-					}
-					log.debug("Trying to resize with ImageMagick: "
-							+ StringUtils.join(command, " "));
+	/**
+	 * Probes the header of the image and adds its metadata to the message.
+	 * 
+	 * @param containingMessage
+	 *            the message containing the image
+	 * @param attachmentFile
+	 *            the image
+	 * @param head
+	 *            the head of the image captured while it was written, null to
+	 *            read the header from the file
+	 * @return the image metadata or null if it could not be read
+	 */
+	private ImageInfo probeImage(EmailMessage containingMessage,
+			File attachmentFile, byte[] head) {
+		ImageInfo image = head != null ? ImageProbe.probe(head) : null;
+		if (image == null) {
+			image = ImageProbe.probe(attachmentFile);
+		}
+		if (image != null) {
+			image.setFileName(attachmentFile.getName());
+			containingMessage.getImages().put(attachmentFile.getName(), image);
+		}
+		return image;
+	}
+
+	/**
+	 * Probes the header of the rendition and adds its metadata to the metadata
+	 * of the image.
+	 * 
+	 * @param image
+	 *            the metadata of the image, may be null
+	 * @param rendition
+	 *            the rendition
+	 * @param renditionFile
+	 *            the rendition file
+	 */
+	private void probeRendition(ImageInfo image, Rendition rendition,
+			File renditionFile) {
+		if (image != null) {
+			ImageInfo info = ImageProbe.probe(renditionFile);
+			if (info != null) {
+				info.setFileName(renditionFile.getName());
+				image.getRenditions().put(rendition.getName(), info);
+			}
+		}
+	}
+
+	/**
+	 * Schedules the creation of the renditions of the image which are missing
+	 * or were not created from the current image with the current
+	 * configuration.
+	 * 
+	 * @param containingMessage
+	 *            the message the renditions are added to as pending
+	 * @param attachmentFolder
+	 *            the folder containing the image
+	 * @param attachmentFile
+	 *            the image
+	 * @param hash
+	 *            the hash of the image content
+	 * @param image
+	 *            the metadata of the image the rendition metadata is added to,
+	 *            may be null
+	 */
+	private void scheduleRenditions(EmailMessage containingMessage,
+			File attachmentFolder, File attachmentFile, String hash,
+			ImageInfo image) {
+		List<Rendition> stale = new ArrayList<Rendition>();
+		for (Rendition rendition : renditions) {
+			File renditionFile = getRenditionFile(attachmentFolder,
+					attachmentFile, rendition);
+			if (!renditionFile.exists() || isIncomplete(renditionFile)
+					|| !manifest.isCurrent(renditionFile, hash, rendition)) {
+				stale.add(rendition);
+			} else {
+				probeRendition(image, rendition, renditionFile);
+			}
+		}
+		if (!stale.isEmpty()) {
+			log.debug("Creating renditions {} of {}", stale,
+					attachmentFile.getName());
+			containingMessage.getPendingRenditions().add(
+					createRenditions(attachmentFolder, attachmentFile, hash,
+							image, stale.toArray(new Rendition[stale.size()])));
+		}
+	}
 
-					rt.exec(command);
-				} catch (Exception t) {
-					log.warn("Exception creating rendition: " + rendition, t);
+	/**
+	 * Schedules a job creating the renditions of the image.
+	 * 
+	 * @param attachmentFolder
+	 *            the folder containing the image
+	 * @param attachmentFile
+	 *            the image
+	 * @param hash
+	 *            the hash of the image content
+	 * @param image
+	 *            the metadata of the image, may be null
+	 * @param create
+	 *            the renditions to create, largest first
+	 * @return the future for waiting on the job
+	 */
+	private Future<Void> createRenditions(final File attachmentFolder,
+			final File attachmentFile, final String hash,
+			final ImageInfo image, final Rendition[] create) {
+		Callable<Void> job = new Callable<Void>() {
+			public Void call() throws InterruptedException {
+				RenditionGenerator generator = new RenditionGenerator(
+						attachmentFile);
+				List<Rendition> external = new ArrayList<Rendition>();
+				for (Rendition rendition : create) {
+					if (Rendition.RESIZER_EXTERNAL.equals(rendition
+							.getResizer())) {
+						external.add(rendition);
+						continue;
+					}
+					File renditionFile = getRenditionFile(attachmentFolder,
+							attachmentFile, rendition);
+					try {
+						long start = System.nanoTime();
+						createRendition(generator, renditionFile, rendition);
+						renditionScheduler.recordRendition(
+								renditionFile.length(), System.nanoTime()
+										- start);
+						manifest.record(renditionFile, hash, rendition);
+						probeRendition(image, rendition, renditionFile);
+						log.debug("Rendition created");
+					} catch (Exception e) {
+						log.warn("Exception creating rendition: " + rendition, e);
+					}
 				}
+				if (!external.isEmpty()) {
+					createExternalRenditions(attachmentFolder, attachmentFile,
+							hash, image, external.toArray(new Rendition[external
+									.size()]));
+				}
+				return null;
+			}
+		};
+		Rendition largest = null;
+		for (Rendition rendition : create) {
+			if (Rendition.RESIZER_INTERNAL.equals(rendition.getResizer())) {
+				largest = rendition;
+				break;
 			}
 		}
-		return true;
+		return renditionScheduler.submit(attachmentFile, largest, job);
 	}
 
-	private void createRendition(File originalFile, File renditionFile,
-			Rendition rendition) throws IOException {
-		if (!renditionFile.exists()) {
-			renditionFile.createNewFile();
+	/**
+	 * Creates the renditions of the image with the external resizer, in a
+	 * single invocation.
+	 * 
+	 * @param attachmentFolder
+	 *            the folder containing the image
+	 * @param attachmentFile
+	 *            the image
+	 * @param hash
+	 *            the hash of the image content
+	 * @param image
+	 *            the metadata of the image, may be null
+	 * @param create
+	 *            the renditions to create
+	 * @throws InterruptedException
+	 */
+	private void createExternalRenditions(File attachmentFolder,
+			File attachmentFile, String hash, ImageInfo image,
+			Rendition[] create)
+			throws InterruptedException {
+		File[] renditionFiles = new File[create.length];
+		for (int i = 0; i < create.length; i++) {
+			renditionFiles[i] = getRenditionFile(attachmentFolder,
+					attachmentFile, create[i]);
+			if (journal != null) {
+				journal.startFile(renditionFiles[i]);
+			}
+		}
+		long duration;
+		try {
+			long start = System.nanoTime();
+			externalResizer.resize(attachmentFile, create, renditionFiles);
+			duration = System.nanoTime() - start;
+		} catch (IOException e) {
+			log.warn("Exception creating renditions " + Arrays.toString(create)
+					+ " with the external resizer", e);
+			return;
 		}
+		for (int i = 0; i < create.length; i++) {
+			if (journal != null) {
+				journal.finishFile(renditionFiles[i]);
+			}
+			renditionScheduler.recordRendition(renditionFiles[i].length(),
+					duration / create.length);
+			manifest.record(renditionFiles[i], hash, create[i]);
+			probeRendition(image, create[i], renditionFiles[i]);
+			log.debug("Rendition created");
+		}
+	}
+
+	private void createRendition(RenditionGenerator generator,
+			File renditionFile, Rendition rendition) throws IOException {
 		log.debug("Creating rendition file: {}",
 				renditionFile.getAbsolutePath());
-		if (rendition.getFill()) {
-			log.debug("Adding fill");
-			Thumbnails
-					.of(originalFile)
-					.size(rendition.getWidth(), rendition.getHeight())
-					.addFilter(
-							new Canvas(rendition.getWidth(), rendition
-									.getHeight(), Positions.CENTER, Color.WHITE))
-					.toFile(renditionFile);
-		} else {
-			Thumbnails.of(originalFile)
-					.size(rendition.getWidth(), rendition.getHeight())
-					.toFile(renditionFile);
+		if (journal != null) {
+			journal.startFile(renditionFile);
+		}
+		generator.create(rendition, renditionFile);
+		if (journal != null) {
+			journal.finishFile(renditionFile);
+		}
+	}
+
+	/**
+	 * Gets the scheduler creating the renditions.
+	 * 
+	 * @return the rendition scheduler
+	 */
+	public RenditionScheduler getRenditionScheduler() {
+		return renditionScheduler;
+	}
+
+	private MessageDigest getDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(AttachmentStore.ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Digest algorithm "
+					+ AttachmentStore.ALGORITHM + " not available");
+		}
+	}
+
+	/**
+	 * Logs the number of pages written and unchanged and the rendition
+	 * metrics.
+	 */
+	public void logMetrics() {
+		log.info("Wrote {} pages, {} pages unchanged", pagesWritten.get(),
+				pagesUnchanged.get());
+		renditionScheduler.logMetrics();
+	}
+
+	/**
+	 * Renders the page to a temporary file, hashing it as it is written, and
+	 * renames it over the message file unless the message file already has
+	 * the same content.
+	 * 
+	 * @return true if the page was written, false if it was unchanged
+	 */
+	private boolean writePage(File messageFile, Map<String, Object> params)
+			throws IOException {
+		File tmp = new File(messageFile.getParentFile(), "."
+				+ messageFile.getName() + ".tmp");
+		MessageDigest digest = getDigest();
+		FileOutputStream os = null;
+		try {
+			os = new FileOutputStream(tmp);
+			Writer writer = new BufferedWriter(new OutputStreamWriter(
+					new DigestOutputStream(os, digest), "UTF-8"));
+			template.render(params, writer);
+			writer.flush();
+			if (!FSYNC_NONE.equals(fsync)) {
+				os.getFD().sync();
+			}
+			os.close();
+
+			if (messageFile.length() == tmp.length()) {
+				MessageDigest existing = getDigest();
+				CopyUtils.digest(messageFile, existing);
+				if (MessageDigest.isEqual(digest.digest(), existing.digest())) {
+					return false;
+				}
+			}
+			CopyUtils.rename(tmp, messageFile);
+			if (FSYNC_ALL.equals(fsync)) {
+				CopyUtils.syncDirectory(messageFile.getParentFile());
+			}
+			return true;
+		} finally {
+			IOUtils.closeQuietly(os);
+			tmp.delete();
 		}
 	}
 
 	/**
 	 * Writes the message to a html file. The name of the HTML file is generated
-	 * from the date of the message.
+	 * from the date of the message. The page is written to a temporary file
+	 * which is renamed into place, unless the content of the existing page is
+	 * the same, in which case the existing page is left untouched.
 	 * 
 	 * @param emailMessage
 	 *            the message to save to a file
@@ -383,7 +867,15 @@ public class OutputWriter {
 	public void writeHTML(EmailMessage emailMessage) throws IOException {
 		log.trace("writeHTML");
 
-		Map<String, Object> params = emailMessage.toMap();
+		// the renditions are probed as they are created, list them in the
+		// order they are configured instead
+		for (ImageInfo image : emailMessage.getImages().values()) {
+			image.orderRenditions(renditionNames);
+		}
+
+		// the hook is passed the message as a string, without a hook the
+		// body is rendered straight into the page
+		Map<String, Object> params = emailMessage.toMap(config.getHookObj() == null);
 		params.put(
 				"attachmentFolder",
 				config.getImagesSubDir() + File.separator
@@ -399,23 +891,24 @@ public class OutputWriter {
 			messageFolder.mkdirs();
 		}
 
-		StrSubstitutor sub = new StrSubstitutor(params);
-		String fileContent = sub.replace(template);
+		File messageFile = getMessageFile(emailMessage);
 
-		String name = String.format(config.getFileNameFormat(),
-				emailMessage.getSentDate(), toPath(emailMessage.getSubject()));
-		File messageFile = new File(outputDir.getAbsolutePath()
-				+ File.separator + config.getMessagesSubDir() + File.separator
-				+ name);
-
-		OutputStream os = null;
-		try {
-			os = new FileOutputStream(messageFile);
-			IOUtils.write(fileContent, new FileOutputStream(messageFile));
+		synchronized (getLock(messageFile)) {
+			if (journal != null) {
+				journal.startFile(messageFile);
+			}
 			log.debug("Writing message to file {}",
 					messageFile.getAbsolutePath());
-		} finally {
-			IOUtils.closeQuietly(os);
+			if (writePage(messageFile, params)) {
+				pagesWritten.incrementAndGet();
+			} else {
+				log.debug("Message file {} is unchanged",
+						messageFile.getAbsolutePath());
+				pagesUnchanged.incrementAndGet();
+			}
+			if (journal != null) {
+				journal.finishFile(messageFile);
+			}
 		}
 		if (config.getHookObj() != null) {
 			config.getHookObj().afterWrite(emailMessage, params, messageFile);
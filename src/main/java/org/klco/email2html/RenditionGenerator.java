@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import net.coobird.thumbnailator.Thumbnails;
+import net.coobird.thumbnailator.filters.Canvas;
+import net.coobird.thumbnailator.geometry.Positions;
+
+import org.klco.email2html.models.ImageInfo;
+import org.klco.email2html.models.Rendition;
+import org.klco.email2html.utils.ImageProbe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the renditions of a single image, decoding the image only once.
+ * Renditions should be created largest first, each rendition is then scaled
+ * from the previous rendition rather than from the decoded image, which is
+ * released once the first rendition has been created. When the renditions are
+ * much smaller than the image, the image is subsampled as it is decoded. The
+ * EXIF orientation of the image is applied, so renditions are always upright.
+ * 
+ * @author dklco
+ */
+public class RenditionGenerator {
+
+	/**
+	 * Orders renditions from the largest to the smallest area.
+	 */
+	private static final Comparator<Rendition> LARGEST_FIRST = new Comparator<Rendition>() {
+		public int compare(Rendition r1, Rendition r2) {
+			long a1 = (long) r1.getWidth() * r1.getHeight();
+			long a2 = (long) r2.getWidth() * r2.getHeight();
+			return a1 > a2 ? -1 : (a1 < a2 ? 1 : 0);
+		}
+	};
+
+	/**
+	 * The minimum ratio between the pixels decoded from the image and the
+	 * pixels of the rendition.
+	 */
+	private static final int SUBSAMPLING_MARGIN = 2;
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory
+			.getLogger(RenditionGenerator.class);
+
+	/**
+	 * The most recently scaled image, the base for subsequent smaller
+	 * renditions.
+	 */
+	private BufferedImage image;
+
+	/**
+	 * The scale of the image relative to the original.
+	 */
+	private double imageScale;
+
+	private final File originalFile;
+
+	private int originalHeight;
+
+	private int originalWidth;
+
+	/**
+	 * The format name of the reader which decoded the image.
+	 */
+	private String sourceFormat;
+
+	/**
+	 * Creates a generator for the renditions of the image, the image is not
+	 * decoded until the first rendition is created.
+	 * 
+	 * @param originalFile
+	 *            the original image
+	 */
+	public RenditionGenerator(File originalFile) {
+		this.originalFile = originalFile;
+	}
+
+	/**
+	 * Sorts the renditions from the largest to the smallest, the order in
+	 * which they should be created.
+	 * 
+	 * @param renditions
+	 *            the renditions
+	 * @return a sorted copy of the renditions
+	 */
+	public static Rendition[] sortLargestFirst(Rendition[] renditions) {
+		Rendition[] sorted = renditions.clone();
+		Arrays.sort(sorted, LARGEST_FIRST);
+		return sorted;
+	}
+
+	/**
+	 * Creates the rendition of the image. If the rendition is larger than the
+	 * previous rendition, the original image is decoded again.
+	 * 
+	 * @param rendition
+	 *            the rendition to create
+	 * @param renditionFile
+	 *            the file to write the rendition to
+	 * @throws IOException
+	 */
+	public void create(Rendition rendition, File renditionFile)
+			throws IOException {
+		log.trace("create");
+		if (image == null) {
+			decode(rendition);
+		}
+		double scale = Math.min(
+				(double) rendition.getWidth() / originalWidth,
+				(double) rendition.getHeight() / originalHeight);
+		if (scale > imageScale && imageScale < 1.0) {
+			log.debug("Rendition {} is larger than the previous rendition",
+					rendition.getName());
+			decode(rendition);
+		}
+
+		BufferedImage scaled = Thumbnails.of(image)
+				.size(rendition.getWidth(), rendition.getHeight())
+				.asBufferedImage();
+		if (scale < imageScale) {
+			image = scaled;
+			imageScale = scale;
+		}
+
+		if (rendition.getFill()) {
+			log.debug("Adding fill");
+			scaled = new Canvas(rendition.getWidth(), rendition.getHeight(),
+					Positions.CENTER, Color.WHITE).apply(scaled);
+		}
+		write(scaled, rendition, renditionFile);
+	}
+
+	/**
+	 * Gets the factor by which an image can be subsampled while decoding it
+	 * for the rendition, leaving at least twice the pixels of the rendition so
+	 * that it is still scaled down smoothly.
+	 * 
+	 * @param width
+	 *            the width of the image
+	 * @param height
+	 *            the height of the image
+	 * @param rendition
+	 *            the largest rendition to be created from the image
+	 * @return the subsampling factor, 1 to decode every pixel
+	 */
+	public static int getSubsampling(int width, int height, Rendition rendition) {
+		double scale = Math.min((double) rendition.getWidth() / width,
+				(double) rendition.getHeight() / height);
+		return Math.max(1, (int) (1.0 / (scale * SUBSAMPLING_MARGIN)));
+	}
+
+	/**
+	 * Encodes the rendition with the format, quality and progressive encoding
+	 * of the rendition. The rendition is encoded from the decoded pixels, so
+	 * it never includes the metadata of the original image. Without a format,
+	 * the format of the file extension is used or, if the file has no
+	 * extension an image writer exists for, the format of the original image.
+	 */
+	private void write(BufferedImage scaled, Rendition rendition,
+			File renditionFile) throws IOException {
+		String format = rendition.getFormat();
+		if (format == null) {
+			String fileName = renditionFile.getName();
+			int idx = fileName.lastIndexOf('.');
+			if (idx != -1
+					&& ImageIO.getImageWritersByFormatName(
+							fileName.substring(idx + 1)).hasNext()) {
+				format = fileName.substring(idx + 1);
+			} else {
+				log.debug("Writing {} in the format of the image, {}",
+						fileName, sourceFormat);
+				format = sourceFormat;
+			}
+		}
+		Iterator<ImageWriter> writers = ImageIO
+				.getImageWritersByFormatName(format);
+		if (!writers.hasNext()) {
+			throw new IOException("No image writer for format " + format);
+		}
+		ImageWriter writer = writers.next();
+		try {
+			if (scaled.getColorModel().hasAlpha()
+					&& ("jpg".equalsIgnoreCase(format) || "jpeg"
+							.equalsIgnoreCase(format))) {
+				scaled = flatten(scaled);
+			}
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if (rendition.getQuality() != -1 && param.canWriteCompressed()) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				if (param.getCompressionType() == null) {
+					param.setCompressionType(param.getCompressionTypes()[0]);
+				}
+				param.setCompressionQuality(rendition.getQuality() / 100f);
+			}
+			if (rendition.isProgressive() && param.canWriteProgressive()) {
+				param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+			}
+			renditionFile.delete();
+			ImageOutputStream ios = ImageIO
+					.createImageOutputStream(renditionFile);
+			if (ios == null) {
+				throw new IOException("Unable to write rendition "
+						+ renditionFile.getAbsolutePath());
+			}
+			try {
+				writer.setOutput(ios);
+				writer.write(null, new IIOImage(scaled, null, null), param);
+			} finally {
+				ios.close();
+			}
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	/**
+	 * Transforms the image so it is displayed upright, according to its EXIF
+	 * orientation.
+	 */
+	private BufferedImage orient(BufferedImage decoded, int orientation) {
+		int w = decoded.getWidth();
+		int h = decoded.getHeight();
+		AffineTransform transform;
+		switch (orientation) {
+		case 2:
+			transform = new AffineTransform(-1, 0, 0, 1, w, 0);
+			break;
+		case 3:
+			transform = new AffineTransform(-1, 0, 0, -1, w, h);
+			break;
+		case 4:
+			transform = new AffineTransform(1, 0, 0, -1, 0, h);
+			break;
+		case 5:
+			transform = new AffineTransform(0, 1, 1, 0, 0, 0);
+			break;
+		case 6:
+			transform = new AffineTransform(0, 1, -1, 0, h, 0);
+			break;
+		case 7:
+			transform = new AffineTransform(0, -1, -1, 0, h, w);
+			break;
+		case 8:
+			transform = new AffineTransform(0, -1, 1, 0, 0, w);
+			break;
+		default:
+			return decoded;
+		}
+		log.debug("Applying orientation {}", orientation);
+		BufferedImage oriented = orientation >= 5 ? new BufferedImage(h, w,
+				getType(decoded)) : new BufferedImage(w, h, getType(decoded));
+		Graphics2D g = oriented.createGraphics();
+		try {
+			g.drawImage(decoded, transform, null);
+		} finally {
+			g.dispose();
+		}
+		return oriented;
+	}
+
+	private int getType(BufferedImage image) {
+		if (image.getType() != BufferedImage.TYPE_CUSTOM) {
+			return image.getType();
+		}
+		return image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+				: BufferedImage.TYPE_INT_RGB;
+	}
+
+	/**
+	 * Draws the image on a white background, for formats which do not support
+	 * transparency.
+	 */
+	private BufferedImage flatten(BufferedImage image) {
+		BufferedImage flat = new BufferedImage(image.getWidth(),
+				image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = flat.createGraphics();
+		try {
+			g.drawImage(image, 0, 0, Color.WHITE, null);
+		} finally {
+			g.dispose();
+		}
+		return flat;
+	}
+
+	/**
+	 * Decodes the image, subsampling the source pixels when the rendition is
+	 * much smaller than the image so that the full size image is never held
+	 * in memory.
+	 */
+	private void decode(Rendition rendition) throws IOException {
+		log.debug("Decoding image {}", originalFile.getAbsolutePath());
+		image = null;
+		ImageInputStream iis = ImageIO.createImageInputStream(originalFile);
+		if (iis == null) {
+			throw new IOException("Unable to read image "
+					+ originalFile.getAbsolutePath());
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext()) {
+				throw new IOException("Unsupported image format "
+						+ originalFile.getAbsolutePath());
+			}
+			ImageReader reader = readers.next();
+			try {
+				sourceFormat = reader.getFormatName();
+				reader.setInput(iis, true, true);
+				ImageInfo info = ImageProbe.probe(originalFile);
+				int orientation = info != null ? info.getOrientation() : 1;
+				if (orientation >= 5) {
+					originalWidth = reader.getHeight(0);
+					originalHeight = reader.getWidth(0);
+				} else {
+					originalWidth = reader.getWidth(0);
+					originalHeight = reader.getHeight(0);
+				}
+				ImageReadParam param = reader.getDefaultReadParam();
+				int subsampling = getSubsampling(originalWidth,
+						originalHeight, rendition);
+				if (subsampling > 1) {
+					log.debug("Subsampling {}x{} image by {}", new Object[] {
+							originalWidth, originalHeight, subsampling });
+					param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				}
+				image = orient(reader.read(0, param), orientation);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			iis.close();
+		}
+		imageScale = Math.min((double) image.getWidth() / originalWidth,
+				(double) image.getHeight() / originalHeight);
+	}
+}
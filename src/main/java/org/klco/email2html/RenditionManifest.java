@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.klco.email2html.models.Rendition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the source content hash and the rendition specification each
+ * rendition file was created from, so a rendition is only created again when
+ * its source or its configuration changes.
+ * 
+ * When the manifest is loaded, renditions which are no longer configured or
+ * whose file name changed with their format are deleted and the manifest is
+ * compacted. If no renditions are configured at all the existing renditions
+ * are kept, so a missing renditions property does not delete every rendition.
+ * 
+ * @author dklco
+ */
+public class RenditionManifest {
+
+	/**
+	 * The name of the manifest file within the output directory.
+	 */
+	public static final String FILE_NAME = ".email2html-renditions";
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory
+			.getLogger(RenditionManifest.class);
+
+	/**
+	 * The source hash and specification of each rendition, by path relative to
+	 * the output directory.
+	 */
+	private final Map<String, String[]> entries = new HashMap<String, String[]>();
+
+	private final File file;
+
+	private final File outputDir;
+
+	private Writer writer;
+
+	/**
+	 * Opens the manifest in the output directory, deleting the renditions
+	 * which are no longer configured unless there are no configured
+	 * renditions.
+	 * 
+	 * @param outputDir
+	 *            the output directory
+	 * @param renditions
+	 *            the configured renditions
+	 * @throws IOException
+	 */
+	public RenditionManifest(File outputDir, Rendition[] renditions)
+			throws IOException {
+		log.trace("RenditionManifest");
+		this.outputDir = outputDir;
+		this.file = new File(outputDir, FILE_NAME);
+		if (file.exists()) {
+			load();
+			if (renditions.length > 0) {
+				cleanup(renditions);
+			}
+		}
+		save();
+		writer = new OutputStreamWriter(new FileOutputStream(file, true),
+				"UTF-8");
+	}
+
+	/**
+	 * Closes the manifest.
+	 */
+	public synchronized void close() {
+		IOUtils.closeQuietly(writer);
+	}
+
+	/**
+	 * Checks whether the rendition file was created from the source content
+	 * with the current rendition specification. Non-empty rendition files
+	 * created before the manifest existed are assumed to be current, callers
+	 * check that the file is not left incomplete by an interrupted run first.
+	 * 
+	 * @param renditionFile
+	 *            the rendition file
+	 * @param hash
+	 *            the hash of the source content
+	 * @param rendition
+	 *            the rendition
+	 * @return true if the rendition is current
+	 */
+	public synchronized boolean isCurrent(File renditionFile, String hash,
+			Rendition rendition) {
+		String[] entry = entries.get(getPath(renditionFile));
+		if (entry == null) {
+			if (renditionFile.length() > 0) {
+				log.debug("Adding existing rendition {} to the manifest",
+						renditionFile.getName());
+				record(renditionFile, hash, rendition);
+				return true;
+			}
+			return false;
+		}
+		return entry[0].equals(hash) && entry[1].equals(rendition.getSpec());
+	}
+
+	/**
+	 * Records that the rendition file was created.
+	 * 
+	 * @param renditionFile
+	 *            the rendition file
+	 * @param hash
+	 *            the hash of the source content
+	 * @param rendition
+	 *            the rendition
+	 */
+	public synchronized void record(File renditionFile, String hash,
+			Rendition rendition) {
+		String path = getPath(renditionFile);
+		String[] entry = new String[] { hash, rendition.getSpec() };
+		entries.put(path, entry);
+		try {
+			append(writer, path, entry);
+			writer.flush();
+		} catch (IOException e) {
+			log.warn("Exception writing to rendition manifest", e);
+		}
+	}
+
+	private void append(Writer out, String path, String[] entry)
+			throws IOException {
+		out.write(path);
+		out.write('\t');
+		out.write(entry[0]);
+		out.write('\t');
+		out.write(entry[1]);
+		out.write('\n');
+	}
+
+	private void cleanup(Rendition[] renditions) {
+		Map<String, Rendition> configured = new HashMap<String, Rendition>();
+		for (Rendition rendition : renditions) {
+			configured.put(rendition.getName(), rendition);
+		}
+		int removed = 0;
+		for (Iterator<Map.Entry<String, String[]>> it = entries.entrySet()
+				.iterator(); it.hasNext();) {
+			Map.Entry<String, String[]> entry = it.next();
+			String[] spec = entry.getValue()[1].split(" ");
+			Rendition rendition = configured.get(spec[0]);
+			// the file name of the rendition changes with its format
+			if (rendition == null
+					|| !StringUtils.equals(rendition.getFormat(),
+							getOption(spec, "format"))) {
+				File renditionFile = new File(outputDir, entry.getKey());
+				log.debug("Deleting rendition {} which is no longer configured",
+						renditionFile.getAbsolutePath());
+				renditionFile.delete();
+				it.remove();
+				removed++;
+			}
+		}
+		if (removed > 0) {
+			log.info("Deleted {} renditions which are no longer configured",
+					removed);
+		}
+	}
+
+	private String getOption(String[] spec, String key) {
+		for (String option : spec) {
+			if (option.startsWith(key + "=")) {
+				return option.substring(key.length() + 1);
+			}
+		}
+		return null;
+	}
+
+	private String getPath(File renditionFile) {
+		String path = renditionFile.getAbsolutePath();
+		String base = outputDir.getAbsolutePath() + File.separator;
+		return path.startsWith(base) ? path.substring(base.length()) : path;
+	}
+
+	private void load() throws IOException {
+		log.debug("Loading rendition manifest from {}", file.getAbsolutePath());
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader
+					.readLine()) {
+				String[] record = line.split("\t");
+				if (record.length != 3) {
+					log.warn("Ignoring invalid manifest record: {}", line);
+					continue;
+				}
+				entries.put(record[0], new String[] { record[1], record[2] });
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Writes the current entries to the manifest, replacing the records which
+	 * were superseded or removed.
+	 */
+	private void save() throws IOException {
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try {
+			for (Map.Entry<String, String[]> entry : entries.entrySet()) {
+				append(out, entry.getKey(), entry.getValue());
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Unable to save rendition manifest to "
+						+ file.getAbsolutePath());
+			}
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.klco.email2html.models.ImageInfo;
+import org.klco.email2html.models.Rendition;
+import org.klco.email2html.utils.ImageProbe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs rendition jobs in parallel within a memory budget. Before an image is
+ * decoded, its decoded size is estimated from the image header and the job
+ * waits until that much of the budget is available, so large images are
+ * queued rather than exhausting the heap. Images larger than the whole budget
+ * run on their own.
+ * 
+ * @author dklco
+ */
+public class RenditionScheduler {
+
+	/**
+	 * The estimated number of bytes per pixel of a decoded image.
+	 */
+	private static final int BYTES_PER_PIXEL = 4;
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory
+			.getLogger(RenditionScheduler.class);
+
+	/**
+	 * The available budget in kilobytes.
+	 */
+	private final Semaphore budget;
+
+	/**
+	 * The total budget in kilobytes.
+	 */
+	private final int budgetKb;
+
+	private final AtomicInteger completed = new AtomicInteger();
+
+	private final AtomicLong maxWait = new AtomicLong();
+
+	/**
+	 * The total size in bytes of the renditions created.
+	 */
+	private final AtomicLong renditionBytes = new AtomicLong();
+
+	private final AtomicInteger renditions = new AtomicInteger();
+
+	/**
+	 * The total time spent creating renditions in nanoseconds.
+	 */
+	private final AtomicLong renditionTime = new AtomicLong();
+
+	/**
+	 * The number of jobs submitted which have not yet started.
+	 */
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private final AtomicLong totalWait = new AtomicLong();
+
+	private final ExecutorService workers;
+
+	/**
+	 * Creates a new scheduler.
+	 * 
+	 * @param threads
+	 *            the maximum number of jobs to run at once
+	 * @param budgetBytes
+	 *            the memory budget in bytes
+	 */
+	public RenditionScheduler(int threads, long budgetBytes) {
+		log.trace("RenditionScheduler");
+		this.budgetKb = (int) Math.min(Math.max(budgetBytes / 1024, 1),
+				Integer.MAX_VALUE);
+		this.budget = new Semaphore(budgetKb, true);
+		this.workers = Executors.newFixedThreadPool(Math.max(threads, 1),
+				new MessagePipeline.NamedThreadFactory("email2html-rendition"));
+		log.info("Creating renditions on {} threads with a budget of {}MB",
+				Math.max(threads, 1), budgetKb / 1024);
+	}
+
+	/**
+	 * Estimates the memory needed to decode the image for the rendition from
+	 * its header, without decoding the image.
+	 * 
+	 * @param image
+	 *            the image file
+	 * @param rendition
+	 *            the largest rendition to be created from the image
+	 * @return the estimated size in bytes or -1 if the image header could not
+	 *         be read
+	 */
+	public static long estimate(File image, Rendition rendition) {
+		ImageInfo info = ImageProbe.probe(image);
+		if (info == null) {
+			return -1;
+		}
+		long subsampling = RenditionGenerator.getSubsampling(
+				info.getDisplayWidth(), info.getDisplayHeight(), rendition);
+		return (long) info.getWidth() * info.getHeight() * BYTES_PER_PIXEL
+				/ (subsampling * subsampling);
+	}
+
+
+	/**
+	 * Gets the number of jobs which have completed.
+	 * 
+	 * @return the number of completed jobs
+	 */
+	public int getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * Gets the longest time a job waited to start.
+	 * 
+	 * @return the wait time in milliseconds
+	 */
+	public long getMaxWait() {
+		return maxWait.get() / 1000000;
+	}
+
+	/**
+	 * Gets the number of jobs which are waiting for a thread or for memory.
+	 * 
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+		return queued.get();
+	}
+
+	/**
+	 * Gets the total size of the renditions created.
+	 * 
+	 * @return the size in bytes
+	 */
+	public long getRenditionBytes() {
+		return renditionBytes.get();
+	}
+
+	/**
+	 * Gets the number of renditions created.
+	 * 
+	 * @return the number of renditions
+	 */
+	public int getRenditions() {
+		return renditions.get();
+	}
+
+	/**
+	 * Gets the total time spent creating renditions.
+	 * 
+	 * @return the time in milliseconds
+	 */
+	public long getRenditionTime() {
+		return renditionTime.get() / 1000000;
+	}
+
+	/**
+	 * Gets the total time jobs waited to start.
+	 * 
+	 * @return the wait time in milliseconds
+	 */
+	public long getTotalWait() {
+		return totalWait.get() / 1000000;
+	}
+
+	/**
+	 * Logs the scheduler metrics.
+	 */
+	public void logMetrics() {
+		int count = completed.get();
+		log.info(
+				"Created renditions of {} images, {} queued, waited {}ms in total, {}ms on average and {}ms at most",
+				new Object[] { count, queued.get(), getTotalWait(),
+						count > 0 ? getTotalWait() / count : 0, getMaxWait() });
+		log.info("Created {} renditions totalling {}KB in {}ms", new Object[] {
+				renditions.get(), renditionBytes.get() / 1024,
+				getRenditionTime() });
+	}
+
+	/**
+	 * Records that a rendition was created.
+	 * 
+	 * @param bytes
+	 *            the size of the rendition in bytes
+	 * @param nanos
+	 *            the time taken to create the rendition in nanoseconds
+	 */
+	public void recordRendition(long bytes, long nanos) {
+		renditions.incrementAndGet();
+		renditionBytes.addAndGet(bytes);
+		renditionTime.addAndGet(nanos);
+	}
+
+	/**
+	 * Shuts down the scheduler once the submitted jobs have completed.
+	 */
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+	/**
+	 * Submits a job creating the renditions of the image.
+	 * 
+	 * @param image
+	 *            the image the renditions are created from
+	 * @param rendition
+	 *            the largest rendition to be created in process, null if all
+	 *            of the renditions are created externally
+	 * @param job
+	 *            the job creating the renditions
+	 * @return the future for waiting on the job
+	 */
+	public Future<Void> submit(final File image, final Rendition rendition,
+			final Callable<Void> job) {
+		log.trace("submit");
+		final long submitted = System.nanoTime();
+		queued.incrementAndGet();
+		return workers.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				int permits = 1;
+				if (rendition != null) {
+					long estimate = estimate(image, rendition);
+					permits = estimate < 0 ? budgetKb : (int) Math.min(
+							Math.max(estimate / 1024, 1), budgetKb);
+				}
+				if (permits > budget.availablePermits()) {
+					log.debug("Waiting for {}KB to create renditions of {}",
+							permits, image.getName());
+				}
+				try {
+					budget.acquire(permits);
+				} finally {
+					queued.decrementAndGet();
+				}
+				long wait = System.nanoTime() - submitted;
+				totalWait.addAndGet(wait);
+				long max = maxWait.get();
+				while (wait > max && !maxWait.compareAndSet(max, wait)) {
+					max = maxWait.get();
+				}
+				try {
+					return job.call();
+				} finally {
+					budget.release(permits);
+					completed.incrementAndGet();
+				}
+			}
+		});
+	}
+}
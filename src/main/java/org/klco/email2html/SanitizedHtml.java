@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.klco.email2html.models.Renderable;
+import org.owasp.html.Handler;
+import org.owasp.html.HtmlSanitizer;
+import org.owasp.html.HtmlStreamRenderer;
+import org.owasp.html.PolicyFactory;
+
+/**
+ * HTML which is sanitized as it is rendered, so the sanitized HTML is written
+ * straight to the output rather than being held in memory as a string.
+ * 
+ * @author dklco
+ */
+public class SanitizedHtml implements Renderable {
+
+	/**
+	 * Whether the sanitized HTML is empty, null until checked.
+	 */
+	private volatile Boolean empty;
+
+	private final String html;
+
+	private final PolicyFactory policy;
+
+	/**
+	 * Creates a new sanitized HTML value.
+	 * 
+	 * @param html
+	 *            the untrusted HTML
+	 * @param policy
+	 *            the policy to sanitize the HTML with
+	 */
+	public SanitizedHtml(String html, PolicyFactory policy) {
+		this.html = html;
+		this.policy = policy;
+	}
+
+	/**
+	 * Checks if the sanitized HTML is empty, which may be the case even if the
+	 * HTML is not, for example if it only contains a script. The HTML is
+	 * sanitized without keeping the output the first time it is checked.
+	 * 
+	 * @return true, if empty
+	 */
+	public boolean isEmpty() {
+		if (empty == null) {
+			if (html == null || html.length() == 0) {
+				empty = Boolean.TRUE;
+			} else {
+				final boolean[] written = new boolean[1];
+				try {
+					render(new Writer() {
+						@Override
+						public void write(char[] cbuf, int off, int len) {
+							written[0] |= len > 0;
+						}
+
+						@Override
+						public void flush() {
+						}
+
+						@Override
+						public void close() {
+						}
+					});
+				} catch (IOException e) {
+					// the writer does not throw
+				}
+				empty = !written[0];
+			}
+		}
+		return empty;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.klco.email2html.models.Renderable#render(java.io.Writer)
+	 */
+	public void render(Writer writer) throws IOException {
+		final IOException[] exception = new IOException[1];
+		HtmlSanitizer.sanitize(html, policy.apply(HtmlStreamRenderer.create(
+				writer, new Handler<IOException>() {
+					public void handle(IOException e) {
+						if (exception[0] == null) {
+							exception[0] = e;
+						}
+					}
+				}, Handler.DO_NOTHING)));
+		if (exception[0] != null) {
+			throw exception[0];
+		}
+	}
+
+	/**
+	 * Sanitizes the HTML to a string.
+	 * 
+	 * @return the sanitized HTML
+	 */
+	@Override
+	public String toString() {
+		return policy.sanitize(html);
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the UIDVALIDITY and the last processed UID of each folder between
+ * runs, so that subsequent runs only need to retrieve new messages.
+ * 
+ * @author dklco
+ */
+public class SyncState {
+
+	/**
+	 * Tracks which of the messages retrieved in a run have been processed, as
+	 * messages may complete out of order the last UID only advances once all
+	 * of the messages before it have completed.
+	 */
+	public class Tracker {
+
+		private final BitSet completed = new BitSet();
+
+		private final String folder;
+
+		private int next = 0;
+
+		private final long maxUid;
+
+		private long lastUid;
+
+		private final long uidValidity;
+
+		private final long[] uids;
+
+		private Tracker(String folder, long uidValidity, long lastUid,
+				long maxUid, long[] uids) {
+			this.folder = folder;
+			this.uidValidity = uidValidity;
+			this.lastUid = lastUid;
+			this.maxUid = maxUid;
+			this.uids = uids;
+			if (uids.length == 0) {
+				this.lastUid = maxUid;
+			}
+		}
+
+		/**
+		 * Marks the message with the specified UID as processed.
+		 * 
+		 * @param uid
+		 *            the message UID
+		 */
+		public void complete(long uid) {
+			synchronized (SyncState.this) {
+				int idx = Arrays.binarySearch(uids, uid);
+				if (idx < 0) {
+					return;
+				}
+				completed.set(idx);
+				while (next < uids.length && completed.get(next)) {
+					lastUid = uids[next];
+					next++;
+				}
+				if (next == uids.length) {
+					lastUid = maxUid;
+				}
+			}
+		}
+
+		/**
+		 * Updates the sync state with the current progress and saves it.
+		 * 
+		 * @throws IOException
+		 */
+		public void save() throws IOException {
+			synchronized (SyncState.this) {
+				update(folder, uidValidity, lastUid);
+				SyncState.this.save();
+			}
+		}
+	}
+
+	/**
+	 * The name of the sync state file within the output directory.
+	 */
+	public static final String FILE_NAME = ".email2html-sync.properties";
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory.getLogger(SyncState.class);
+
+	/**
+	 * The file the state is persisted to.
+	 */
+	private File file;
+
+	/**
+	 * The current state, keyed by folder name and attribute.
+	 */
+	private Properties state = new Properties();
+
+	/**
+	 * Loads the sync state from the specified output directory, if no state
+	 * has been saved yet the state will be empty.
+	 * 
+	 * @param outputDir
+	 *            the output directory
+	 * @throws IOException
+	 */
+	public SyncState(File outputDir) throws IOException {
+		log.trace("SyncState");
+		file = new File(outputDir, FILE_NAME);
+		if (file.exists()) {
+			log.debug("Loading sync state from {}", file.getAbsolutePath());
+			InputStream is = null;
+			try {
+				is = new FileInputStream(file);
+				state.load(is);
+			} finally {
+				IOUtils.closeQuietly(is);
+			}
+		}
+	}
+
+	/**
+	 * Gets the last processed UID for the folder.
+	 * 
+	 * @param folder
+	 *            the folder name
+	 * @return the last processed UID or 0 if none has been processed
+	 */
+	public synchronized long getLastUid(String folder) {
+		return getLong(folder + ".lastUid");
+	}
+
+	/**
+	 * Gets the UIDVALIDITY of the folder at the time of the last run.
+	 * 
+	 * @param folder
+	 *            the folder name
+	 * @return the UIDVALIDITY or -1 if the folder has not been synced
+	 */
+	public synchronized long getUidValidity(String folder) {
+		String value = state.getProperty(folder + ".uidValidity");
+		return value != null ? Long.parseLong(value) : -1;
+	}
+
+	/**
+	 * Saves the sync state to the output directory. The state is written to a
+	 * temporary file first so an interrupted save does not lose the previous
+	 * state.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		log.trace("save");
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(tmp);
+			state.store(os, "Email2HTML Sync State");
+		} finally {
+			IOUtils.closeQuietly(os);
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Unable to save sync state to "
+						+ file.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Starts tracking the progress of a run over the specified messages.
+	 * 
+	 * @param folder
+	 *            the folder name
+	 * @param uidValidity
+	 *            the current UIDVALIDITY of the folder
+	 * @param lastUid
+	 *            the last UID processed before this run
+	 * @param maxUid
+	 *            the highest UID in the folder, the last UID will be advanced
+	 *            to this value once all of the messages are processed
+	 * @param uids
+	 *            the UIDs of the messages to be processed, in ascending order
+	 * @return the tracker
+	 */
+	public Tracker track(String folder, long uidValidity, long lastUid,
+			long maxUid, long[] uids) {
+		return new Tracker(folder, uidValidity, lastUid, maxUid, uids);
+	}
+
+	/**
+	 * Updates the state of the folder.
+	 * 
+	 * @param folder
+	 *            the folder name
+	 * @param uidValidity
+	 *            the current UIDVALIDITY of the folder
+	 * @param lastUid
+	 *            the last processed UID
+	 */
+	public synchronized void update(String folder, long uidValidity,
+			long lastUid) {
+		log.debug("Updating folder {} to last UID {}", folder, lastUid);
+		state.setProperty(folder + ".uidValidity", String.valueOf(uidValidity));
+		state.setProperty(folder + ".lastUid", String.valueOf(lastUid));
+	}
+
+	private long getLong(String key) {
+		String value = state.getProperty(key);
+		return value != null ? Long.parseLong(value) : 0;
+	}
+}
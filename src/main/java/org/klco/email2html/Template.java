@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.klco.email2html.models.Renderable;
+
+/**
+ * A message template, compiled once into a tree of segments which render
+ * directly to a writer. The template supports the following tags:
+ * 
+ * <ul>
+ * <li>${name} - the value of the parameter, nested values are accessed with
+ * dots, for example ${image.width}</li>
+ * <li>${#each name as item} ... ${/each} - renders the content once for each
+ * element of a collection, array or map, map entries have a key and value</li>
+ * <li>${#if name} ... ${#else} ... ${/if} - renders the content if the value
+ * is present and not false or empty</li>
+ * </ul>
+ * 
+ * Placeholders which cannot be resolved are rendered unchanged and $${ is
+ * rendered as a literal ${, as with the original placeholder syntax.
+ * 
+ * @author dklco
+ */
+public class Template {
+
+	/**
+	 * The parameters available while rendering, loop variables shadow the
+	 * parameters of the enclosing scope.
+	 */
+	private static class Scope {
+
+		private final String name;
+
+		private final Scope parent;
+
+		private final Map<String, Object> params;
+
+		private final Object value;
+
+		private Scope(Map<String, Object> params) {
+			this.params = params;
+			this.parent = null;
+			this.name = null;
+			this.value = null;
+		}
+
+		private Scope(Scope parent, String name, Object value) {
+			this.params = null;
+			this.parent = parent;
+			this.name = name;
+			this.value = value;
+		}
+
+		private Object get(String name) {
+			for (Scope scope = this; scope != null; scope = scope.parent) {
+				if (scope.params != null) {
+					return scope.params.get(name);
+				} else if (scope.name.equals(name)) {
+					return scope.value;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A compiled part of the template.
+	 */
+	private static abstract class Segment {
+		abstract void render(Scope scope, Writer writer) throws IOException;
+	}
+
+	private static class Each extends Segment {
+
+		private final List<Segment> body;
+
+		private final String[] path;
+
+		private final String variable;
+
+		private Each(String[] path, String variable, List<Segment> body) {
+			this.path = path;
+			this.variable = variable;
+			this.body = body;
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		void render(Scope scope, Writer writer) throws IOException {
+			Object value = resolve(scope, path);
+			Iterator<?> items;
+			if (value instanceof Map) {
+				items = ((Map) value).entrySet().iterator();
+			} else if (value instanceof Collection) {
+				items = ((Collection) value).iterator();
+			} else if (value != null && value.getClass().isArray()) {
+				List<Object> list = new ArrayList<Object>();
+				for (int i = 0; i < Array.getLength(value); i++) {
+					list.add(Array.get(value, i));
+				}
+				items = list.iterator();
+			} else {
+				return;
+			}
+			while (items.hasNext()) {
+				Scope item = new Scope(scope, variable, items.next());
+				for (Segment segment : body) {
+					segment.render(item, writer);
+				}
+			}
+		}
+	}
+
+	private static class If extends Segment {
+
+		private final List<Segment> body;
+
+		private final List<Segment> otherwise;
+
+		private final String[] path;
+
+		private If(String[] path, List<Segment> body, List<Segment> otherwise) {
+			this.path = path;
+			this.body = body;
+			this.otherwise = otherwise;
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		void render(Scope scope, Writer writer) throws IOException {
+			Object value = resolve(scope, path);
+			boolean present = value != null && !Boolean.FALSE.equals(value);
+			if (value instanceof Collection) {
+				present = !((Collection) value).isEmpty();
+			} else if (value instanceof Map) {
+				present = !((Map) value).isEmpty();
+			} else if (value instanceof CharSequence) {
+				present = ((CharSequence) value).length() > 0;
+			} else if (value instanceof Renderable) {
+				present = !((Renderable) value).isEmpty();
+			}
+			for (Segment segment : present ? body : otherwise) {
+				segment.render(scope, writer);
+			}
+		}
+	}
+
+	private static class Text extends Segment {
+
+		private final String text;
+
+		private Text(String text) {
+			this.text = text;
+		}
+
+		@Override
+		void render(Scope scope, Writer writer) throws IOException {
+			writer.write(text);
+		}
+	}
+
+	private static class Variable extends Segment {
+
+		private final String[] path;
+
+		private final String placeholder;
+
+		private Variable(String placeholder, String[] path) {
+			this.placeholder = placeholder;
+			this.path = path;
+		}
+
+		@Override
+		void render(Scope scope, Writer writer) throws IOException {
+			Object value = resolve(scope, path);
+			if (value instanceof Renderable) {
+				((Renderable) value).render(writer);
+			} else {
+				writer.write(value != null ? value.toString() : placeholder);
+			}
+		}
+	}
+
+	/**
+	 * Parses the template into segments, tracking the position in the template
+	 * and the tag which ended the last block.
+	 */
+	private static class Parser {
+
+		private String end;
+
+		private int pos;
+
+		private final String template;
+
+		private Parser(String template) {
+			this.template = template;
+		}
+
+		private void addText(List<Segment> segments, StringBuilder text) {
+			if (text.length() > 0) {
+				segments.add(new Text(text.toString()));
+				text.setLength(0);
+			}
+		}
+
+		private IllegalArgumentException invalid(int at, String message) {
+			int line = 1;
+			for (int i = 0; i < at; i++) {
+				if (template.charAt(i) == '\n') {
+					line++;
+				}
+			}
+			return new IllegalArgumentException(message
+					+ " in template at line " + line);
+		}
+
+		/**
+		 * Parses segments until the end of the template or a closing tag,
+		 * which is left in end.
+		 */
+		private List<Segment> parse() {
+			List<Segment> segments = new ArrayList<Segment>();
+			StringBuilder text = new StringBuilder();
+			end = null;
+			while (pos < template.length()) {
+				int start = template.indexOf("${", pos);
+				int close = start != -1 ? template.indexOf('}', start) : -1;
+				if (close == -1) {
+					text.append(template, pos, template.length());
+					pos = template.length();
+				} else if (start > 0 && template.charAt(start - 1) == '$') {
+					text.append(template, pos, start - 1).append("${");
+					pos = start + 2;
+				} else {
+					text.append(template, pos, start);
+					pos = close + 1;
+					String tag = template.substring(start + 2, close).trim();
+					if (tag.equals(ELSE) || tag.equals(END_EACH)
+							|| tag.equals(END_IF)) {
+						end = tag;
+						break;
+					}
+					addText(segments, text);
+					if (tag.startsWith(EACH)) {
+						segments.add(parseEach(start, tag));
+					} else if (tag.startsWith(IF)) {
+						segments.add(parseIf(start, tag));
+					} else {
+						segments.add(new Variable(template.substring(start,
+								close + 1), tag.split("\\.")));
+					}
+				}
+			}
+			addText(segments, text);
+			return segments;
+		}
+
+		private Segment parseEach(int start, String tag) {
+			String[] expression = tag.substring(EACH.length()).trim()
+					.split("\\s+");
+			if (expression.length != 3 || !"as".equals(expression[1])) {
+				throw invalid(start, "Expected ${#each name as item}");
+			}
+			List<Segment> body = parse();
+			if (!END_EACH.equals(end)) {
+				throw invalid(start, "Missing ${" + END_EACH + "}");
+			}
+			end = null;
+			return new Each(expression[0].split("\\."), expression[2], body);
+		}
+
+		private Segment parseIf(int start, String tag) {
+			String[] path = tag.substring(IF.length()).trim().split("\\.");
+			List<Segment> body = parse();
+			List<Segment> otherwise = Collections.emptyList();
+			if (ELSE.equals(end)) {
+				otherwise = parse();
+			}
+			if (!END_IF.equals(end)) {
+				throw invalid(start, "Missing ${" + END_IF + "}");
+			}
+			end = null;
+			return new If(path, body, otherwise);
+		}
+	}
+
+	private static final String EACH = "#each ";
+
+	private static final String ELSE = "#else";
+
+	private static final String END_EACH = "/each";
+
+	private static final String END_IF = "/if";
+
+	private static final String IF = "#if ";
+
+	private final List<Segment> segments;
+
+	/**
+	 * Compiles the template.
+	 * 
+	 * @param template
+	 *            the template content
+	 * @throws IllegalArgumentException
+	 *             if the tags in the template are invalid or not closed
+	 */
+	public Template(String template) {
+		Parser parser = new Parser(template);
+		segments = parser.parse();
+		if (parser.end != null) {
+			throw parser.invalid(parser.pos, "Unexpected ${" + parser.end
+					+ "}");
+		}
+	}
+
+	/**
+	 * Renders the template with the specified parameters.
+	 * 
+	 * @param params
+	 *            the parameters
+	 * @param writer
+	 *            the writer to render to, the caller is responsible for
+	 *            buffering and closing the writer
+	 * @throws IOException
+	 */
+	public void render(Map<String, Object> params, Writer writer)
+			throws IOException {
+		Scope scope = new Scope(params);
+		for (Segment segment : segments) {
+			segment.render(scope, writer);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static Object resolve(Scope scope, String[] path) {
+		Object value = scope.get(path[0]);
+		for (int i = 1; i < path.length && value != null; i++) {
+			if (value instanceof Map.Entry) {
+				Map.Entry entry = (Map.Entry) value;
+				if ("key".equals(path[i])) {
+					value = entry.getKey();
+				} else if ("value".equals(path[i])) {
+					value = entry.getValue();
+				} else {
+					value = null;
+				}
+			} else if (value instanceof Map) {
+				value = ((Map) value).get(path[i]);
+			} else {
+				value = null;
+			}
+		}
+		return value;
+	}
+}
@@ -35,12 +35,23 @@ public class Email2HTMLConfiguration {
 	 */
 	private String breakStrings = "<div class=\"gmail_quote,<hr,Sent from my,Technical details of permanent failure,Forwarded message,";
 
+	/**
+	 * The number of connections over which to retrieve the messages.
+	 */
+	private int connections = 1;
+
 	/**
 	 * Flag for excluding duplicate attachments and messages based on their MD5
 	 * Checksum (if available).
 	 */
 	private boolean excludeDuplicates = true;
 
+	/**
+	 * The number of messages to batch fetch the envelope and structure for at
+	 * a time, 0 disables prefetching.
+	 */
+	private int fetchSize = 100;
+
 	/** The Java String format to generate the file names **/
 	private String fileNameFormat = "%1$tY-%1$tm-%1$td-%2$s.html";
 
@@ -57,6 +68,12 @@ public class Email2HTMLConfiguration {
 	 */
 	private Hook hookObj;
 
+	/**
+	 * Whether or not to only retrieve messages which were added since the
+	 * last run.
+	 */
+	private boolean incremental = false;
+
 	/** The message template name. */
 	private String template;
 
@@ -76,6 +93,11 @@ public class Email2HTMLConfiguration {
 	 */
 	private String password;
 
+	/**
+	 * The number of times to attempt to reconnect a lost connection.
+	 */
+	private int reconnectAttempts = 3;
+
 	/**
 	 * The image renditons to be created.
 	 */
@@ -86,6 +108,16 @@ public class Email2HTMLConfiguration {
 	 */
 	private String searchSubject;
 
+	/**
+	 * The protocol of the store from which to retrieve the messages.
+	 */
+	private String protocol = "imaps";
+
+	/**
+	 * The maximum number of messages being processed at a time.
+	 */
+	private int queueSize = 20;
+
 	/**
 	 * The URL to connect to retrieve the email.
 	 */
@@ -96,6 +128,146 @@ public class Email2HTMLConfiguration {
 	 */
 	private String username;
 
+	/**
+	 * The number of threads reading messages.
+	 */
+	private int workerThreads = 1;
+
+	/**
+	 * The senders of the emails to search for, comma separated, optional.
+	 */
+	private String searchFrom;
+
+	/**
+	 * Whether messages must match all or any of the search criteria.
+	 */
+	private String searchMatch = "all";
+
+	/**
+	 * The maximum size in bytes of the emails to search for, 0 for no limit.
+	 */
+	private int searchMaxSize = 0;
+
+	/**
+	 * The minimum size in bytes of the emails to search for, 0 for no limit.
+	 */
+	private int searchMinSize = 0;
+
+	/**
+	 * Only search for emails received before this date, optional.
+	 */
+	private String searchReceivedBefore;
+
+	/**
+	 * Only search for emails received on or after this date, optional.
+	 */
+	private String searchReceivedSince;
+
+	/**
+	 * Only search for emails sent before this date, optional.
+	 */
+	private String searchSentBefore;
+
+	/**
+	 * Only search for emails sent on or after this date, optional.
+	 */
+	private String searchSentSince;
+
+	/**
+	 * The recipients of the emails to search for, comma separated, optional.
+	 */
+	private String searchTo;
+
+	/**
+	 * Whether to only search for unseen emails.
+	 */
+	private boolean searchUnseen = false;
+
+	/**
+	 * The source to read the messages from, either imap, mbox, maildir or eml.
+	 */
+	private String source = "imap";
+
+	/**
+	 * The path of the mbox file, Maildir or directory of .eml files to read.
+	 */
+	private String sourcePath;
+
+	/**
+	 * The maximum size in bytes of a message re-parsed in memory, larger messages are spooled to a temporary file.
+	 */
+	private int spoolThreshold = 1024 * 1024;
+
+	/**
+	 * Whether or not to keep running and watch the folder for new messages after the initial run.
+	 */
+	private boolean daemon = false;
+
+	/**
+	 * The interval in seconds at which to refresh the connection while waiting for new messages.
+	 */
+	private int keepAliveInterval = 300;
+
+	/**
+	 * The interval in seconds at which to check for new messages if the server does not support IDLE, also the delay before reconnecting.
+	 */
+	private int pollInterval = 60;
+
+	/**
+	 * Whether or not to journal the progress of each run so an incomplete run can be resumed.
+	 */
+	private boolean journal = true;
+
+	/**
+	 * The memory budget for decoding images in megabytes, 0 to use half of the maximum heap.
+	 */
+	private int renditionMemory = 0;
+
+	/**
+	 * The number of threads creating renditions, 0 to use one per processor.
+	 */
+	private int renditionThreads = 0;
+
+	/**
+	 * The ImageMagick compatible command used by external renditions.
+	 */
+	private String resizerCommand = "convert";
+
+	/**
+	 * The maximum number of external resizer processes running at once.
+	 */
+	private int resizerProcesses = 2;
+
+	/**
+	 * The maximum time in seconds an external resizer process may run.
+	 */
+	private int resizerTimeout = 60;
+
+	/**
+	 * Whether to ignore case when matching the break strings.
+	 */
+	private boolean breakStringsIgnoreCase = false;
+
+	/**
+	 * The text sub-types to use as the message body, in order of preference.
+	 */
+	private String bodyPreference = "html,plain";
+
+	/**
+	 * Whether to keep the full, untrimmed message for the template.
+	 */
+	private boolean keepFullMessage = true;
+
+	/**
+	 * When to flush written pages to disk, one of none, file or all.
+	 */
+	private String fsync = "none";
+
+	/**
+	 * The time in seconds to wait for messages being processed when stopping the daemon.
+	 */
+	private int shutdownTimeout = 60;
+
 	/**
 	 * The sub-directory under which images should be stored.
 	 */
@@ -115,10 +287,28 @@ public class Email2HTMLConfiguration {
 		return breakStrings;
 	}
 
+	/**
+	 * Gets the fetch size.
+	 * 
+	 * @return the fetch size
+	 */
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
 	public String getFileNameFormat() {
 		return fileNameFormat;
 	}
 
+	/**
+	 * Gets the connections.
+	 * 
+	 * @return the connections
+	 */
+	public int getConnections() {
+		return connections;
+	}
+
 	/**
 	 * Get the folder.
 	 * 
@@ -183,6 +373,33 @@ public class Email2HTMLConfiguration {
 		return password;
 	}
 
+	/**
+	 * Gets the protocol.
+	 * 
+	 * @return the protocol
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Gets the queue size.
+	 * 
+	 * @return the queue size
+	 */
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	/**
+	 * Gets the reconnect attempts.
+	 * 
+	 * @return the reconnect attempts
+	 */
+	public int getReconnectAttempts() {
+		return reconnectAttempts;
+	}
+
 	/**
 	 * Gets the renditions.
 	 * 
@@ -228,6 +445,258 @@ public class Email2HTMLConfiguration {
 		return username;
 	}
 
+	/**
+	 * Gets the worker threads.
+	 * 
+	 * @return the worker threads
+	 */
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	/**
+	 * Gets the search from.
+	 * 
+	 * @return the search from
+	 */
+	public String getSearchFrom() {
+		return searchFrom;
+	}
+
+	/**
+	 * Gets the search match.
+	 * 
+	 * @return the search match
+	 */
+	public String getSearchMatch() {
+		return searchMatch;
+	}
+
+	/**
+	 * Gets the search max size.
+	 * 
+	 * @return the search max size
+	 */
+	public int getSearchMaxSize() {
+		return searchMaxSize;
+	}
+
+	/**
+	 * Gets the search min size.
+	 * 
+	 * @return the search min size
+	 */
+	public int getSearchMinSize() {
+		return searchMinSize;
+	}
+
+	/**
+	 * Gets the search received before.
+	 * 
+	 * @return the search received before
+	 */
+	public String getSearchReceivedBefore() {
+		return searchReceivedBefore;
+	}
+
+	/**
+	 * Gets the search received since.
+	 * 
+	 * @return the search received since
+	 */
+	public String getSearchReceivedSince() {
+		return searchReceivedSince;
+	}
+
+	/**
+	 * Gets the search sent before.
+	 * 
+	 * @return the search sent before
+	 */
+	public String getSearchSentBefore() {
+		return searchSentBefore;
+	}
+
+	/**
+	 * Gets the search sent since.
+	 * 
+	 * @return the search sent since
+	 */
+	public String getSearchSentSince() {
+		return searchSentSince;
+	}
+
+	/**
+	 * Gets the search to.
+	 * 
+	 * @return the search to
+	 */
+	public String getSearchTo() {
+		return searchTo;
+	}
+
+	/**
+	 * Checks if search unseen.
+	 * 
+	 * @return the search unseen
+	 */
+	public boolean isSearchUnseen() {
+		return searchUnseen;
+	}
+
+	/**
+	 * Gets the source.
+	 * 
+	 * @return the source
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Gets the source path.
+	 * 
+	 * @return the source path
+	 */
+	public String getSourcePath() {
+		return sourcePath;
+	}
+
+	/**
+	 * Gets the spool threshold.
+	 * 
+	 * @return the spool threshold
+	 */
+	public int getSpoolThreshold() {
+		return spoolThreshold;
+	}
+
+	/**
+	 * Checks if daemon.
+	 * 
+	 * @return the daemon
+	 */
+	public boolean isDaemon() {
+		return daemon;
+	}
+
+	/**
+	 * Gets the keep alive interval.
+	 * 
+	 * @return the keep alive interval
+	 */
+	public int getKeepAliveInterval() {
+		return keepAliveInterval;
+	}
+
+	/**
+	 * Gets the poll interval.
+	 * 
+	 * @return the poll interval
+	 */
+	public int getPollInterval() {
+		return pollInterval;
+	}
+
+	/**
+	 * Checks if journal.
+	 * 
+	 * @return the journal
+	 */
+	public boolean isJournal() {
+		return journal;
+	}
+
+	/**
+	 * Gets the rendition memory.
+	 * 
+	 * @return the rendition memory
+	 */
+	public int getRenditionMemory() {
+		return renditionMemory;
+	}
+
+	/**
+	 * Gets the rendition threads.
+	 * 
+	 * @return the rendition threads
+	 */
+	public int getRenditionThreads() {
+		return renditionThreads;
+	}
+
+	/**
+	 * Gets the resizer command.
+	 * 
+	 * @return the resizer command
+	 */
+	public String getResizerCommand() {
+		return resizerCommand;
+	}
+
+	/**
+	 * Gets the resizer processes.
+	 * 
+	 * @return the resizer processes
+	 */
+	public int getResizerProcesses() {
+		return resizerProcesses;
+	}
+
+	/**
+	 * Gets the resizer timeout.
+	 * 
+	 * @return the resizer timeout
+	 */
+	public int getResizerTimeout() {
+		return resizerTimeout;
+	}
+
+	/**
+	 * Checks if break strings ignore case.
+	 * 
+	 * @return the break strings ignore case
+	 */
+	public boolean isBreakStringsIgnoreCase() {
+		return breakStringsIgnoreCase;
+	}
+
+	/**
+	 * Gets the body preference.
+	 * 
+	 * @return the body preference
+	 */
+	public String getBodyPreference() {
+		return bodyPreference;
+	}
+
+	/**
+	 * Checks if keep full message.
+	 * 
+	 * @return the keep full message
+	 */
+	public boolean isKeepFullMessage() {
+		return keepFullMessage;
+	}
+
+	/**
+	 * Gets the fsync.
+	 * 
+	 * @return the fsync
+	 */
+	public String getFsync() {
+		return fsync;
+	}
+
+	/**
+	 * Gets the shutdown timeout.
+	 * 
+	 * @return the shutdown timeout
+	 */
+	public int getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
 	/**
 	 * Checks if is exclude duplicates.
 	 * 
@@ -237,6 +706,15 @@ public class Email2HTMLConfiguration {
 		return excludeDuplicates;
 	}
 
+	/**
+	 * Checks if only new messages should be retrieved.
+	 * 
+	 * @return true, if incremental
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+
 	/**
 	 * Sets the break strings.
 	 * 
@@ -247,6 +725,16 @@ public class Email2HTMLConfiguration {
 		this.breakStrings = breakStrings;
 	}
 
+	/**
+	 * Sets the connections.
+	 * 
+	 * @param connections
+	 *            the new connections
+	 */
+	public void setConnections(int connections) {
+		this.connections = connections;
+	}
+
 	/**
 	 * Sets the exclude duplicates.
 	 * 
@@ -257,6 +745,16 @@ public class Email2HTMLConfiguration {
 		this.excludeDuplicates = excludeDuplicates;
 	}
 
+	/**
+	 * Sets the fetch size.
+	 * 
+	 * @param fetchSize
+	 *            the new fetch size
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
 	public void setFileNameFormat(String fileNameFormat) {
 		this.fileNameFormat = fileNameFormat;
 	}
@@ -295,6 +793,16 @@ public class Email2HTMLConfiguration {
 		this.imagesSubDir = imagesSubDir;
 	}
 
+	/**
+	 * Sets the incremental flag.
+	 * 
+	 * @param incremental
+	 *            the new incremental flag
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
 	/**
 	 * @param messagesSubDir
 	 *            the messagesSubDir to set
@@ -333,6 +841,36 @@ public class Email2HTMLConfiguration {
 		this.password = password;
 	}
 
+	/**
+	 * Sets the protocol.
+	 * 
+	 * @param protocol
+	 *            the new protocol
+	 */
+	public void setProtocol(String protocol) {
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Sets the queue size.
+	 * 
+	 * @param queueSize
+	 *            the new queue size
+	 */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Sets the reconnect attempts.
+	 * 
+	 * @param reconnectAttempts
+	 *            the new reconnect attempts
+	 */
+	public void setReconnectAttempts(int reconnectAttempts) {
+		this.reconnectAttempts = reconnectAttempts;
+	}
+
 	/**
 	 * Sets the renditions.
 	 * 
@@ -382,4 +920,284 @@ public class Email2HTMLConfiguration {
 	public void setUsername(String username) {
 		this.username = username;
 	}
+
+	/**
+	 * Sets the worker threads.
+	 * 
+	 * @param workerThreads
+	 *            the new worker threads
+	 */
+	public void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * Sets the search from.
+	 * 
+	 * @param searchFrom
+	 *            the new search from
+	 */
+	public void setSearchFrom(String searchFrom) {
+		this.searchFrom = searchFrom;
+	}
+
+	/**
+	 * Sets the search match.
+	 * 
+	 * @param searchMatch
+	 *            the new search match
+	 */
+	public void setSearchMatch(String searchMatch) {
+		this.searchMatch = searchMatch;
+	}
+
+	/**
+	 * Sets the search max size.
+	 * 
+	 * @param searchMaxSize
+	 *            the new search max size
+	 */
+	public void setSearchMaxSize(int searchMaxSize) {
+		this.searchMaxSize = searchMaxSize;
+	}
+
+	/**
+	 * Sets the search min size.
+	 * 
+	 * @param searchMinSize
+	 *            the new search min size
+	 */
+	public void setSearchMinSize(int searchMinSize) {
+		this.searchMinSize = searchMinSize;
+	}
+
+	/**
+	 * Sets the search received before.
+	 * 
+	 * @param searchReceivedBefore
+	 *            the new search received before
+	 */
+	public void setSearchReceivedBefore(String searchReceivedBefore) {
+		this.searchReceivedBefore = searchReceivedBefore;
+	}
+
+	/**
+	 * Sets the search received since.
+	 * 
+	 * @param searchReceivedSince
+	 *            the new search received since
+	 */
+	public void setSearchReceivedSince(String searchReceivedSince) {
+		this.searchReceivedSince = searchReceivedSince;
+	}
+
+	/**
+	 * Sets the search sent before.
+	 * 
+	 * @param searchSentBefore
+	 *            the new search sent before
+	 */
+	public void setSearchSentBefore(String searchSentBefore) {
+		this.searchSentBefore = searchSentBefore;
+	}
+
+	/**
+	 * Sets the search sent since.
+	 * 
+	 * @param searchSentSince
+	 *            the new search sent since
+	 */
+	public void setSearchSentSince(String searchSentSince) {
+		this.searchSentSince = searchSentSince;
+	}
+
+	/**
+	 * Sets the search to.
+	 * 
+	 * @param searchTo
+	 *            the new search to
+	 */
+	public void setSearchTo(String searchTo) {
+		this.searchTo = searchTo;
+	}
+
+	/**
+	 * Sets the search unseen.
+	 * 
+	 * @param searchUnseen
+	 *            the new search unseen
+	 */
+	public void setSearchUnseen(boolean searchUnseen) {
+		this.searchUnseen = searchUnseen;
+	}
+
+	/**
+	 * Sets the source.
+	 * 
+	 * @param source
+	 *            the new source
+	 */
+	public void setSource(String source) {
+		this.source = source;
+	}
+
+	/**
+	 * Sets the source path.
+	 * 
+	 * @param sourcePath
+	 *            the new source path
+	 */
+	public void setSourcePath(String sourcePath) {
+		this.sourcePath = sourcePath;
+	}
+
+	/**
+	 * Sets the spool threshold.
+	 * 
+	 * @param spoolThreshold
+	 *            the new spool threshold
+	 */
+	public void setSpoolThreshold(int spoolThreshold) {
+		this.spoolThreshold = spoolThreshold;
+	}
+
+	/**
+	 * Sets the daemon.
+	 * 
+	 * @param daemon
+	 *            the new daemon
+	 */
+	public void setDaemon(boolean daemon) {
+		this.daemon = daemon;
+	}
+
+	/**
+	 * Sets the keep alive interval.
+	 * 
+	 * @param keepAliveInterval
+	 *            the new keep alive interval
+	 */
+	public void setKeepAliveInterval(int keepAliveInterval) {
+		this.keepAliveInterval = keepAliveInterval;
+	}
+
+	/**
+	 * Sets the poll interval.
+	 * 
+	 * @param pollInterval
+	 *            the new poll interval
+	 */
+	public void setPollInterval(int pollInterval) {
+		this.pollInterval = pollInterval;
+	}
+
+	/**
+	 * Sets the journal.
+	 * 
+	 * @param journal
+	 *            the new journal
+	 */
+	public void setJournal(boolean journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Sets the rendition memory.
+	 * 
+	 * @param renditionMemory
+	 *            the new rendition memory
+	 */
+	public void setRenditionMemory(int renditionMemory) {
+		this.renditionMemory = renditionMemory;
+	}
+
+	/**
+	 * Sets the rendition threads.
+	 * 
+	 * @param renditionThreads
+	 *            the new rendition threads
+	 */
+	public void setRenditionThreads(int renditionThreads) {
+		this.renditionThreads = renditionThreads;
+	}
+
+	/**
+	 * Sets the resizer command.
+	 * 
+	 * @param resizerCommand
+	 *            the new resizer command
+	 */
+	public void setResizerCommand(String resizerCommand) {
+		this.resizerCommand = resizerCommand;
+	}
+
+	/**
+	 * Sets the resizer processes.
+	 * 
+	 * @param resizerProcesses
+	 *            the new resizer processes
+	 */
+	public void setResizerProcesses(int resizerProcesses) {
+		this.resizerProcesses = resizerProcesses;
+	}
+
+	/**
+	 * Sets the resizer timeout.
+	 * 
+	 * @param resizerTimeout
+	 *            the new resizer timeout
+	 */
+	public void setResizerTimeout(int resizerTimeout) {
+		this.resizerTimeout = resizerTimeout;
+	}
+
+	/**
+	 * Sets the break strings ignore case.
+	 * 
+	 * @param breakStringsIgnoreCase
+	 *            the new break strings ignore case
+	 */
+	public void setBreakStringsIgnoreCase(boolean breakStringsIgnoreCase) {
+		this.breakStringsIgnoreCase = breakStringsIgnoreCase;
+	}
+
+	/**
+	 * Sets the body preference.
+	 * 
+	 * @param bodyPreference
+	 *            the new body preference
+	 */
+	public void setBodyPreference(String bodyPreference) {
+		this.bodyPreference = bodyPreference;
+	}
+
+	/**
+	 * Sets the keep full message.
+	 * 
+	 * @param keepFullMessage
+	 *            the new keep full message
+	 */
+	public void setKeepFullMessage(boolean keepFullMessage) {
+		this.keepFullMessage = keepFullMessage;
+	}
+
+	/**
+	 * Sets the fsync.
+	 * 
+	 * @param fsync
+	 *            the new fsync
+	 */
+	public void setFsync(String fsync) {
+		this.fsync = fsync;
+	}
+
+	/**
+	 * Sets the shutdown timeout.
+	 * 
+	 * @param shutdownTimeout
+	 *            the new shutdown timeout
+	 */
+	public void setShutdownTimeout(int shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
 }
@@ -27,6 +27,8 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 /**
  * The Class EmailMessage.
@@ -41,9 +43,18 @@ public class EmailMessage {
 	/** The full message. */
 	private String fullMessage;
 
+	/** The metadata of the image attachments, by file name. */
+	private Map<String, ImageInfo> images = new ConcurrentHashMap<String, ImageInfo>();
+
 	/** The message. */
 	private String message;
 
+	/** The message body, rendered when the message is written. */
+	private Renderable messageBody;
+
+	/** The renditions which are still being created. */
+	private List<Future<Void>> pendingRenditions = new ArrayList<Future<Void>>();
+
 	/** The sender. */
 	private String sender;
 
@@ -72,14 +83,46 @@ public class EmailMessage {
 	}
 
 	/**
-	 * Gets the message.
+	 * Gets the renditions of the attachments which are still being created.
+	 * 
+	 * @return the pending renditions
+	 */
+	public List<Future<Void>> getPendingRenditions() {
+		return pendingRenditions;
+	}
+
+	/**
+	 * Gets the metadata of the image attachments.
+	 * 
+	 * @return the image metadata by attachment file name
+	 */
+	public Map<String, ImageInfo> getImages() {
+		return images;
+	}
+
+	/**
+	 * Gets the message. If only the message body is set, it is rendered to a
+	 * string the first time the message is retrieved.
 	 * 
 	 * @return the message
 	 */
 	public String getMessage() {
+		if (message == null && messageBody != null) {
+			message = messageBody.toString();
+		}
 		return message;
 	}
 
+	/**
+	 * Gets the message body, which is rendered as the message is written
+	 * rather than being held as a string.
+	 * 
+	 * @return the message body
+	 */
+	public Renderable getMessageBody() {
+		return messageBody;
+	}
+
 	/**
 	 * Gets the sender.
 	 * 
@@ -137,6 +180,17 @@ public class EmailMessage {
 		this.message = message;
 	}
 
+	/**
+	 * Sets the message body, which is rendered as the message is written.
+	 * 
+	 * @param messageBody
+	 *            the new message body
+	 */
+	public void setMessageBody(Renderable messageBody) {
+		this.messageBody = messageBody;
+		this.message = null;
+	}
+
 	/**
 	 * Sets the sender.
 	 * 
@@ -168,14 +222,35 @@ public class EmailMessage {
 	}
 	
 	public Map<String,Object> toMap(){
+		return toMap(false);
+	}
+
+	/**
+	 * Converts the message to the parameters passed to the template and the
+	 * hook.
+	 * 
+	 * @param renderBody
+	 *            whether the message body is passed as is, to be rendered
+	 *            straight into the page, rather than as a string
+	 * @return the parameters
+	 */
+	public Map<String,Object> toMap(boolean renderBody){
 		Map<String,Object> map = new HashMap<String,Object>();
 		List<String> attachmentNames = new ArrayList<String>();
+		List<Map<String,Object>> imageMaps = new ArrayList<Map<String,Object>>();
 		for(File attachment : attachments){
 			attachmentNames.add(attachment.getName());
+			ImageInfo image = images.get(attachment.getName());
+			if(image != null){
+				imageMaps.add(image.toMap());
+			}
 		}
 		map.put("attachments",attachmentNames);
-		map.put("fullMessage",fullMessage);
-		map.put("message",message);
+		map.put("images",imageMaps);
+		// not kept when keepFullMessage is false, written as empty rather
+		// than as the placeholder
+		map.put("fullMessage",fullMessage != null ? fullMessage : "");
+		map.put("message",renderBody && message == null && messageBody != null ? messageBody : getMessage());
 		map.put("sender",sender);
 		map.put("sentDate",sentDate);
 		map.put("subject",subject);
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html.models;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The metadata of an image read from its header.
+ * 
+ * @author dklco
+ */
+public class ImageInfo {
+
+	/** The capture date, null if not recorded. */
+	private Date captureDate;
+
+	/** The name of the file. */
+	private String fileName;
+
+	/** The height, as stored in the image. */
+	private int height;
+
+	/** The EXIF orientation, 1 if not recorded. */
+	private int orientation = 1;
+
+	/**
+	 * The metadata of the renditions of the image, by rendition name, in the
+	 * order the renditions were added.
+	 */
+	private final Map<String, ImageInfo> renditions = Collections
+			.synchronizedMap(new LinkedHashMap<String, ImageInfo>());
+
+	/** The width, as stored in the image. */
+	private int width;
+
+	/**
+	 * Gets the capture date.
+	 * 
+	 * @return the capture date or null if not recorded
+	 */
+	public Date getCaptureDate() {
+		return captureDate;
+	}
+
+	/**
+	 * Gets the name of the file.
+	 * 
+	 * @return the file name or null if not set
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Gets the height the image is displayed at, once the orientation is
+	 * applied.
+	 * 
+	 * @return the display height
+	 */
+	public int getDisplayHeight() {
+		return isRotated() ? width : height;
+	}
+
+	/**
+	 * Gets the width the image is displayed at, once the orientation is
+	 * applied.
+	 * 
+	 * @return the display width
+	 */
+	public int getDisplayWidth() {
+		return isRotated() ? height : width;
+	}
+
+	/**
+	 * Gets the height, as stored in the image.
+	 * 
+	 * @return the height
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the EXIF orientation.
+	 * 
+	 * @return the orientation, 1 if not recorded
+	 */
+	public int getOrientation() {
+		return orientation;
+	}
+
+	/**
+	 * Gets the metadata of the renditions of the image.
+	 * 
+	 * @return the rendition metadata by rendition name
+	 */
+	public Map<String, ImageInfo> getRenditions() {
+		return renditions;
+	}
+
+	/**
+	 * Gets the width, as stored in the image.
+	 * 
+	 * @return the width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Checks if the orientation rotates the image by 90 degrees, swapping its
+	 * width and height.
+	 * 
+	 * @return true, if rotated
+	 */
+	public boolean isRotated() {
+		return orientation >= 5 && orientation <= 8;
+	}
+
+	/**
+	 * Orders the metadata of the renditions by the rendition names, any
+	 * renditions which are not named follow in the order they were added.
+	 * 
+	 * @param names
+	 *            the rendition names, in order
+	 */
+	public void orderRenditions(List<String> names) {
+		synchronized (renditions) {
+			Map<String, ImageInfo> ordered = new LinkedHashMap<String, ImageInfo>();
+			for (String name : names) {
+				ImageInfo rendition = renditions.get(name);
+				if (rendition != null) {
+					ordered.put(name, rendition);
+				}
+			}
+			ordered.putAll(renditions);
+			renditions.clear();
+			renditions.putAll(ordered);
+		}
+	}
+
+	/**
+	 * Sets the capture date.
+	 * 
+	 * @param captureDate
+	 *            the new capture date
+	 */
+	public void setCaptureDate(Date captureDate) {
+		this.captureDate = captureDate;
+	}
+
+	/**
+	 * Sets the name of the file.
+	 * 
+	 * @param fileName
+	 *            the new file name
+	 */
+	public void setFileName(String fileName) {
+		this.fileName = fileName;
+	}
+
+	/**
+	 * Sets the height.
+	 * 
+	 * @param height
+	 *            the new height
+	 */
+	public void setHeight(int height) {
+		this.height = height;
+	}
+
+	/**
+	 * Sets the EXIF orientation.
+	 * 
+	 * @param orientation
+	 *            the new orientation
+	 */
+	public void setOrientation(int orientation) {
+		this.orientation = orientation;
+	}
+
+	/**
+	 * Sets the width.
+	 * 
+	 * @param width
+	 *            the new width
+	 */
+	public void setWidth(int width) {
+		this.width = width;
+	}
+
+	/**
+	 * Converts the image metadata to the parameters passed to the template,
+	 * the width and height are the displayed dimensions and the renditions
+	 * are mapped by rendition name, in order.
+	 * 
+	 * @return the parameters
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("captureDate", captureDate);
+		if (fileName != null) {
+			map.put("fileName", fileName);
+		}
+		map.put("height", getDisplayHeight());
+		map.put("orientation", orientation);
+		map.put("width", getDisplayWidth());
+		Map<String, Object> renditionMaps = new LinkedHashMap<String, Object>();
+		synchronized (renditions) {
+			for (Map.Entry<String, ImageInfo> rendition : renditions
+					.entrySet()) {
+				renditionMaps.put(rendition.getKey(), rendition.getValue()
+						.toMap());
+			}
+		}
+		map.put("renditions", renditionMaps);
+		return map;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ImageInfo [captureDate=" + captureDate + ", height=" + height
+				+ ", orientation=" + orientation + ", width=" + width + "]";
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html.models;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A value which renders itself to the writer, rather than being converted to
+ * a string first. The string value of a renderable value must be the same as
+ * the content it renders.
+ * 
+ * @author dklco
+ */
+public interface Renderable {
+
+	/**
+	 * Checks if the value renders no content.
+	 * 
+	 * @return true, if empty
+	 */
+	boolean isEmpty();
+
+	/**
+	 * Renders the value to the writer.
+	 * 
+	 * @param writer
+	 *            the writer
+	 * @throws IOException
+	 */
+	void render(Writer writer) throws IOException;
+}
@@ -6,7 +6,18 @@ package org.klco.email2html.models;
 public class Rendition {
 
 	/**
-	 * Parses the source string.
+	 * Resizer creating the rendition with an external command.
+	 */
+	public static final String RESIZER_EXTERNAL = "external";
+
+	/**
+	 * Resizer creating the rendition in process, the default.
+	 */
+	public static final String RESIZER_INTERNAL = "internal";
+
+	/**
+	 * Parses the source string, in the format [name] [height] [width] [fill
+	 * (optional)] followed by optional options in the format [key]=[value].
 	 * 
 	 * @param source
 	 *            the source
@@ -14,7 +25,7 @@ public class Rendition {
 	 */
 	public static Rendition parse(String source) {
 		Rendition r = new Rendition();
-		String[] sourceStrs = source.split(" ");
+		String[] sourceStrs = source.trim().split("\\s+");
 		if (sourceStrs.length < 3) {
 			throw new java.lang.IllegalArgumentException(
 					"Rendition string must contain name, height and width");
@@ -22,8 +33,17 @@ public class Rendition {
 		r.name = sourceStrs[0];
 		r.height = Integer.parseInt(sourceStrs[1], 10);
 		r.width = Integer.parseInt(sourceStrs[2], 10);
-		if (sourceStrs.length == 4) {
-			r.fill = Boolean.valueOf(sourceStrs[3]);
+		for (int i = 3; i < sourceStrs.length; i++) {
+			int idx = sourceStrs[i].indexOf('=');
+			if (idx == -1 && i == 3) {
+				r.fill = Boolean.valueOf(sourceStrs[i]);
+			} else if (idx == -1) {
+				throw new IllegalArgumentException("Invalid rendition option "
+						+ sourceStrs[i] + ", expected [key]=[value]");
+			} else {
+				r.setOption(sourceStrs[i].substring(0, idx),
+						sourceStrs[i].substring(idx + 1));
+			}
 		}
 		return r;
 	}
@@ -31,12 +51,27 @@ public class Rendition {
 	/** The fill, set to white by default. */
 	private boolean fill = false;
 
+	/** The output format, null to use the format of the file name. */
+	private String format;
+
 	/** The height. */
 	private int height;
 
 	/** The name. */
 	private String name;
 
+	/** Whether to use progressive or interlaced encoding. */
+	private boolean progressive = false;
+
+	/** The output quality from 0 to 100, -1 for the encoder default. */
+	private int quality = -1;
+
+	/** The resizer, internal by default. */
+	private String resizer = RESIZER_INTERNAL;
+
+	/** Whether to strip the image metadata. */
+	private boolean strip = false;
+
 	/** The width. */
 	private int width;
 
@@ -49,6 +84,33 @@ public class Rendition {
 		return fill;
 	}
 
+	/**
+	 * Gets the name of the file the rendition of an image is written to. The
+	 * extension of the image file name is replaced with the format of the
+	 * rendition, if it has one.
+	 * 
+	 * @param fileName
+	 *            the name of the image file
+	 * @return the name of the rendition file
+	 */
+	public String getFileName(String fileName) {
+		if (format != null) {
+			int idx = fileName.lastIndexOf('.');
+			fileName = (idx > 0 ? fileName.substring(0, idx) : fileName) + "."
+					+ format.toLowerCase();
+		}
+		return name + "-" + fileName;
+	}
+
+	/**
+	 * Gets the output format.
+	 * 
+	 * @return the format or null to use the format of the file name
+	 */
+	public String getFormat() {
+		return format;
+	}
+
 	/**
 	 * Gets the height.
 	 * 
@@ -67,6 +129,53 @@ public class Rendition {
 		return name;
 	}
 
+	/**
+	 * Gets the output quality.
+	 * 
+	 * @return the quality from 0 to 100 or -1 for the encoder default
+	 */
+	public int getQuality() {
+		return quality;
+	}
+
+	/**
+	 * Gets the resizer.
+	 * 
+	 * @return the resizer
+	 */
+	public String getResizer() {
+		return resizer;
+	}
+
+	/**
+	 * Gets the specification of the rendition, which changes whenever a change
+	 * to the configuration of the rendition changes the rendition created.
+	 * 
+	 * @return the specification
+	 */
+	public String getSpec() {
+		StringBuilder spec = new StringBuilder();
+		spec.append(name).append(" ").append(height).append(" ").append(width)
+				.append(" ").append(fill);
+		if (format != null) {
+			spec.append(" format=").append(format);
+		}
+		if (progressive) {
+			spec.append(" progressive=true");
+		}
+		if (quality != -1) {
+			spec.append(" quality=").append(quality);
+		}
+		if (!RESIZER_INTERNAL.equals(resizer)) {
+			spec.append(" resizer=").append(resizer);
+		}
+		if (strip && RESIZER_EXTERNAL.equals(resizer)) {
+			// renditions created in process never include metadata
+			spec.append(" strip=true");
+		}
+		return spec.toString();
+	}
+
 	/**
 	 * Gets the width.
 	 * 
@@ -76,6 +185,24 @@ public class Rendition {
 		return width;
 	}
 
+	/**
+	 * Checks if the image is encoded progressively.
+	 * 
+	 * @return true, if progressive
+	 */
+	public boolean isProgressive() {
+		return progressive;
+	}
+
+	/**
+	 * Checks if the image metadata is stripped.
+	 * 
+	 * @return true, if stripped
+	 */
+	public boolean isStrip() {
+		return strip;
+	}
+
 	/**
 	 * Sets the fill.
 	 * 
@@ -86,6 +213,16 @@ public class Rendition {
 		this.fill = fill;
 	}
 
+	/**
+	 * Sets the output format.
+	 * 
+	 * @param format
+	 *            the new format, null to use the format of the file name
+	 */
+	public void setFormat(String format) {
+		this.format = format;
+	}
+
 	/**
 	 * Sets the height.
 	 * 
@@ -106,6 +243,56 @@ public class Rendition {
 		this.name = name;
 	}
 
+	/**
+	 * Sets whether the image is encoded progressively.
+	 * 
+	 * @param progressive
+	 *            the new progressive
+	 */
+	public void setProgressive(boolean progressive) {
+		this.progressive = progressive;
+	}
+
+	/**
+	 * Sets the output quality.
+	 * 
+	 * @param quality
+	 *            the new quality from 0 to 100, -1 for the encoder default
+	 */
+	public void setQuality(int quality) {
+		if (quality < -1 || quality > 100) {
+			throw new IllegalArgumentException("Invalid quality " + quality
+					+ ", expected a value from 0 to 100");
+		}
+		this.quality = quality;
+	}
+
+	/**
+	 * Sets the resizer.
+	 * 
+	 * @param resizer
+	 *            the new resizer, either internal or external
+	 */
+	public void setResizer(String resizer) {
+		if (!RESIZER_INTERNAL.equals(resizer)
+				&& !RESIZER_EXTERNAL.equals(resizer)) {
+			throw new IllegalArgumentException("Invalid resizer " + resizer
+					+ ", expected " + RESIZER_INTERNAL + " or "
+					+ RESIZER_EXTERNAL);
+		}
+		this.resizer = resizer;
+	}
+
+	/**
+	 * Sets whether the image metadata is stripped.
+	 * 
+	 * @param strip
+	 *            the new strip
+	 */
+	public void setStrip(boolean strip) {
+		this.strip = strip;
+	}
+
 	/**
 	 * Sets the width.
 	 * 
@@ -123,7 +310,28 @@ public class Rendition {
 	 */
 	@Override
 	public String toString() {
-		return "Rendition [fill=" + fill + ", height=" + height + ", name="
-				+ name + ", width=" + width + "]";
+		return "Rendition [fill=" + fill + ", format=" + format + ", height="
+				+ height + ", name=" + name + ", progressive=" + progressive
+				+ ", quality=" + quality + ", resizer=" + resizer + ", strip="
+				+ strip + ", width=" + width + "]";
+	}
+
+	private void setOption(String key, String value) {
+		if ("fill".equals(key)) {
+			fill = Boolean.valueOf(value);
+		} else if ("format".equals(key)) {
+			format = value.toLowerCase();
+		} else if ("progressive".equals(key)) {
+			progressive = Boolean.valueOf(value);
+		} else if ("quality".equals(key)) {
+			setQuality(Integer.parseInt(value, 10));
+		} else if ("resizer".equals(key)) {
+			setResizer(value);
+		} else if ("strip".equals(key)) {
+			strip = Boolean.valueOf(value);
+		} else {
+			throw new IllegalArgumentException("Unknown rendition option "
+					+ key);
+		}
 	}
 }
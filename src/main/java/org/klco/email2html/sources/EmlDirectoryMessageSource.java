@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html.sources;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.mail.Session;
+
+/**
+ * Reads the messages from a directory of .eml files, in file name order.
+ * 
+ * @author dklco
+ */
+public class EmlDirectoryMessageSource extends FileMessageSource {
+
+	/**
+	 * Orders files by their name.
+	 */
+	static final Comparator<File> NAME_ORDER = new Comparator<File>() {
+		public int compare(File o1, File o2) {
+			return o1.getName().compareTo(o2.getName());
+		}
+	};
+
+	/**
+	 * Lists the .eml files in the directory.
+	 * 
+	 * @param directory
+	 *            the directory
+	 * @return the message files
+	 * @throws FileNotFoundException
+	 */
+	private static List<File> listFiles(File directory)
+			throws FileNotFoundException {
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile()
+						&& file.getName().toLowerCase().endsWith(".eml");
+			}
+		});
+		if (files == null) {
+			throw new FileNotFoundException("No directory found at "
+					+ directory.getAbsolutePath());
+		}
+		Arrays.sort(files, NAME_ORDER);
+		return new ArrayList<File>(Arrays.asList(files));
+	}
+
+	/**
+	 * Creates a source reading the .eml files in the directory.
+	 * 
+	 * @param directory
+	 *            the directory containing the .eml files
+	 * @param session
+	 *            the session to create the messages in
+	 * @throws FileNotFoundException
+	 */
+	public EmlDirectoryMessageSource(File directory, Session session)
+			throws FileNotFoundException {
+		super(listFiles(directory), session);
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html.sources;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads messages stored one message per file. As with mbox files, the content
+ * of each message is read from the file when it is needed rather than being
+ * loaded into memory when the message is parsed, so each message keeps its
+ * file open until the message is closed.
+ * 
+ * @author dklco
+ */
+public class FileMessageSource implements MessageSource {
+
+	/**
+	 * A message read from a file, closing the message closes the file.
+	 */
+	private static class FileMessage extends MimeMessage implements Closeable {
+
+		private final SharedFileInputStream in;
+
+		private FileMessage(Session session, SharedFileInputStream in)
+				throws MessagingException {
+			super(session, in);
+			this.in = in;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory
+			.getLogger(FileMessageSource.class);
+
+	private final List<File> files;
+
+	private int next = 0;
+
+	private final Session session;
+
+	/**
+	 * Creates a source reading the specified message files.
+	 * 
+	 * @param files
+	 *            the message files, in the order they should be read
+	 * @param session
+	 *            the session to create the messages in
+	 */
+	public FileMessageSource(List<File> files, Session session) {
+		this.files = files;
+		this.session = session;
+	}
+
+	public void close() {
+		// nothing to release, each file is closed with its message
+	}
+
+	public synchronized MimeMessage next() throws IOException,
+			MessagingException {
+		if (next >= files.size()) {
+			return null;
+		}
+		File file = files.get(next++);
+		log.debug("Reading message from {}", file);
+		SharedFileInputStream in = new SharedFileInputStream(file);
+		try {
+			return new FileMessage(session, in);
+		} catch (MessagingException e) {
+			IOUtils.closeQuietly(in);
+			throw e;
+		}
+	}
+
+	public synchronized List<MessageSource> split(int partitions) {
+		List<MessageSource> sources = new ArrayList<MessageSource>();
+		List<File> remaining = files.subList(next, files.size());
+		int size = (remaining.size() + partitions - 1)
+				/ Math.max(partitions, 1);
+		for (int start = 0; start < remaining.size(); start += size) {
+			sources.add(new FileMessageSource(new ArrayList<File>(remaining
+					.subList(start, Math.min(start + size, remaining.size()))),
+					session));
+		}
+		next = files.size();
+		return sources;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html.sources;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.Session;
+
+/**
+ * Reads the messages from a Maildir directory, including both the new and
+ * current messages. Maildir file names start with the delivery time, so the
+ * messages are read in name order.
+ * 
+ * @author dklco
+ */
+public class MaildirMessageSource extends FileMessageSource {
+
+	/**
+	 * Lists the message files in the Maildir directory.
+	 * 
+	 * @param maildir
+	 *            the Maildir directory
+	 * @return the message files
+	 * @throws FileNotFoundException
+	 */
+	private static List<File> listFiles(File maildir)
+			throws FileNotFoundException {
+		if (!new File(maildir, "cur").isDirectory()
+				&& !new File(maildir, "new").isDirectory()) {
+			throw new FileNotFoundException("No Maildir found at "
+					+ maildir.getAbsolutePath());
+		}
+		List<File> files = new ArrayList<File>();
+		for (String sub : new String[] { "cur", "new" }) {
+			File[] children = new File(maildir, sub).listFiles();
+			if (children != null) {
+				for (File child : children) {
+					if (child.isFile() && !child.getName().startsWith(".")) {
+						files.add(child);
+					}
+				}
+			}
+		}
+		File[] sorted = files.toArray(new File[files.size()]);
+		Arrays.sort(sorted, EmlDirectoryMessageSource.NAME_ORDER);
+		return new ArrayList<File>(Arrays.asList(sorted));
+	}
+
+	/**
+	 * Creates a source reading the messages in the Maildir directory.
+	 * 
+	 * @param maildir
+	 *            the Maildir directory
+	 * @param session
+	 *            the session to create the messages in
+	 * @throws FileNotFoundException
+	 */
+	public MaildirMessageSource(File maildir, Session session)
+			throws FileNotFoundException {
+		super(listFiles(maildir), session);
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html.sources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads messages from an mbox file. The file is memory mapped to find the
+ * message boundaries, the messages are then parsed from streams over the
+ * shared file, so the message content is only read as it is needed and is
+ * never copied into memory as a whole.
+ * 
+ * Quoted "&gt;From " lines within the messages are not unescaped.
+ * 
+ * @author dklco
+ */
+public class MboxMessageSource implements MessageSource {
+
+	/**
+	 * The marker starting each message in the mbox file.
+	 */
+	private static final byte[] FROM = { 'F', 'r', 'o', 'm', ' ' };
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory
+			.getLogger(MboxMessageSource.class);
+
+	/**
+	 * The maximum size of each region of the file mapped at a time.
+	 */
+	private static final long MAP_SIZE = 256L * 1024L * 1024L;
+
+	/**
+	 * Finds the boundaries of the messages within the mbox file.
+	 * 
+	 * @param file
+	 *            the mbox file
+	 * @return the start and end offset of each message, the start being the
+	 *         offset after the From_ line and the end the offset of the next
+	 *         From_ line
+	 * @throws IOException
+	 */
+	private static long[][] findMessages(File file) throws IOException {
+		log.trace("findMessages");
+		List<long[]> messages = new ArrayList<long[]>();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			boolean lineStart = true;
+			boolean inFromLine = false;
+			int matched = -1;
+			long fromStart = -1;
+			long[] current = null;
+			for (long offset = 0; offset < size; offset += MAP_SIZE) {
+				MappedByteBuffer buffer = channel.map(
+						FileChannel.MapMode.READ_ONLY, offset,
+						Math.min(MAP_SIZE, size - offset));
+				int limit = buffer.limit();
+				for (int i = 0; i < limit; i++) {
+					byte b = buffer.get(i);
+					long pos = offset + i;
+					if (inFromLine) {
+						if (b == '\n') {
+							inFromLine = false;
+							current = new long[] { pos + 1, size };
+							messages.add(current);
+						}
+					} else if (matched >= 0) {
+						if (b == FROM[matched]) {
+							matched++;
+							if (matched == FROM.length) {
+								if (current != null) {
+									current[1] = fromStart;
+								}
+								inFromLine = true;
+								matched = -1;
+							}
+						} else {
+							matched = -1;
+						}
+					}
+					if (lineStart && !inFromLine && b == FROM[0]) {
+						fromStart = pos;
+						matched = 1;
+					}
+					lineStart = b == '\n';
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		log.debug("Found {} messages in {}", messages.size(), file);
+		return messages.toArray(new long[messages.size()][]);
+	}
+
+	private final int end;
+
+	private final File file;
+
+	private int next;
+
+	private final long[][] messages;
+
+	private final Session session;
+
+	private SharedFileInputStream stream;
+
+	/**
+	 * Creates a source reading all of the messages in the mbox file.
+	 * 
+	 * @param file
+	 *            the mbox file
+	 * @param session
+	 *            the session to create the messages in
+	 * @throws IOException
+	 */
+	public MboxMessageSource(File file, Session session) throws IOException {
+		this(file, session, findMessages(file), 0, -1);
+	}
+
+	private MboxMessageSource(File file, Session session, long[][] messages,
+			int start, int end) {
+		this.file = file;
+		this.session = session;
+		this.messages = messages;
+		this.next = start;
+		this.end = end < 0 ? messages.length : end;
+	}
+
+	public synchronized void close() {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				log.warn("Exception closing mbox file " + file, e);
+			}
+			stream = null;
+		}
+	}
+
+	public synchronized MimeMessage next() throws IOException,
+			MessagingException {
+		if (next >= end) {
+			return null;
+		}
+		if (stream == null) {
+			stream = new SharedFileInputStream(file);
+		}
+		long[] message = messages[next++];
+		return new MimeMessage(session, stream.newStream(message[0],
+				message[1]));
+	}
+
+	public synchronized List<MessageSource> split(int partitions) {
+		List<MessageSource> sources = new ArrayList<MessageSource>();
+		int remaining = end - next;
+		int size = (remaining + partitions - 1) / Math.max(partitions, 1);
+		for (int start = next; start < end; start += size) {
+			sources.add(new MboxMessageSource(file, session, messages, start,
+					Math.min(start + size, end)));
+		}
+		next = end;
+		return sources;
+	}
+}
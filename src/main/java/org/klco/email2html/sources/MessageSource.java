@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html.sources;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A source of messages read from somewhere other than a mail server, such as
+ * a mailbox export on the local filesystem.
+ * 
+ * @author dklco
+ */
+public interface MessageSource {
+
+	/**
+	 * Releases the resources held by the source.
+	 */
+	public void close();
+
+	/**
+	 * Reads the next message from the source.
+	 * 
+	 * @return the next message or null if there are no more messages
+	 * @throws IOException
+	 * @throws MessagingException
+	 */
+	public MimeMessage next() throws IOException, MessagingException;
+
+	/**
+	 * Splits the messages remaining in this source into partitions which can
+	 * be read concurrently, each partition is read from its own source.
+	 * 
+	 * @param partitions
+	 *            the maximum number of partitions
+	 * @return the sources for the partitions
+	 * @throws IOException
+	 */
+	public List<MessageSource> split(int partitions) throws IOException;
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Finds the earliest occurrence of any of the break strings in a message.
+ * The plain break strings are compiled into a single Aho-Corasick automaton
+ * so the message is scanned once regardless of the number of break strings.
+ * Break strings prefixed with regex: are matched as regular expressions.
+ * 
+ * @author dklco
+ */
+public class BreakStringMatcher {
+
+	/**
+	 * The prefix of break strings which are regular expressions.
+	 */
+	public static final String REGEX_PREFIX = "regex:";
+
+	/**
+	 * The index in the alphabet of each ASCII character, 0 for characters
+	 * which do not occur in any break string.
+	 */
+	private final int[] ascii = new int[128];
+
+	/**
+	 * The width of a row in the transition table, the number of distinct
+	 * characters in the break strings plus one.
+	 */
+	private final int width;
+
+	private final boolean ignoreCase;
+
+	/**
+	 * The length of the longest break string ending in each state, 0 if the
+	 * state does not complete a break string.
+	 */
+	private final int[] matchLength;
+
+	private final int maxLength;
+
+	/**
+	 * The sorted non-ASCII characters of the alphabet, the index in the
+	 * alphabet is 128 plus the position in the array.
+	 */
+	private final char[] others;
+
+	private final Pattern[] patterns;
+
+	/**
+	 * The transition table, the next state is at the current state plus the
+	 * index of the character in the alphabet. States are stored as the offset
+	 * of their row, negated for states which complete a break string.
+	 */
+	private final int[] transitions;
+
+	/**
+	 * Compiles the break strings, blank break strings are ignored.
+	 * 
+	 * @param breakStrings
+	 *            the break strings
+	 * @param ignoreCase
+	 *            whether to ignore case when matching
+	 * @throws java.util.regex.PatternSyntaxException
+	 *             if a regular expression is invalid
+	 */
+	public BreakStringMatcher(String[] breakStrings, boolean ignoreCase) {
+		this.ignoreCase = ignoreCase;
+		List<String> strings = new ArrayList<String>();
+		List<Pattern> regexes = new ArrayList<Pattern>();
+		StringBuilder chars = new StringBuilder();
+		int longest = 0;
+		for (String breakString : breakStrings) {
+			if (StringUtils.isBlank(breakString)) {
+				continue;
+			} else if (breakString.startsWith(REGEX_PREFIX)) {
+				regexes.add(Pattern.compile(
+						breakString.substring(REGEX_PREFIX.length()),
+						ignoreCase ? Pattern.CASE_INSENSITIVE
+								| Pattern.UNICODE_CASE : 0));
+			} else {
+				String string = ignoreCase ? lowerCase(breakString)
+						: breakString;
+				strings.add(string);
+				chars.append(string);
+				longest = Math.max(longest, string.length());
+			}
+		}
+		patterns = regexes.toArray(new Pattern[regexes.size()]);
+		maxLength = longest;
+
+		char[] alphabet = chars.toString().toCharArray();
+		Arrays.sort(alphabet);
+		StringBuilder nonAscii = new StringBuilder();
+		int size = 1;
+		for (int i = 0; i < alphabet.length; i++) {
+			char c = alphabet[i];
+			if (i > 0 && alphabet[i - 1] == c) {
+				continue;
+			} else if (c < 128) {
+				ascii[c] = size++;
+			} else {
+				nonAscii.append(c);
+			}
+		}
+		others = nonAscii.toString().toCharArray();
+		width = size + others.length;
+
+		// build the trie
+		int states = 1;
+		for (String string : strings) {
+			states += string.length();
+		}
+		int[] trie = new int[states * width];
+		int[] lengths = new int[states];
+		int count = 1;
+		for (String string : strings) {
+			int state = 0;
+			for (int i = 0; i < string.length(); i++) {
+				int idx = state * width + indexOf(string.charAt(i));
+				if (trie[idx] == 0) {
+					trie[idx] = count++;
+				}
+				state = trie[idx];
+			}
+			lengths[state] = string.length();
+		}
+
+		// add the failure transitions breadth first, so each state inherits
+		// the transitions and matches of its longest proper suffix
+		int[] fail = new int[count];
+		Queue<Integer> queue = new LinkedList<Integer>();
+		for (int c = 0; c < width; c++) {
+			if (trie[c] != 0) {
+				queue.add(trie[c]);
+			}
+		}
+		while (!queue.isEmpty()) {
+			int state = queue.remove();
+			lengths[state] = Math.max(lengths[state], lengths[fail[state]]);
+			for (int c = 0; c < width; c++) {
+				int next = trie[state * width + c];
+				if (next != 0) {
+					fail[next] = trie[fail[state] * width + c];
+					queue.add(next);
+				} else {
+					trie[state * width + c] = trie[fail[state] * width + c];
+				}
+			}
+		}
+		transitions = new int[count * width];
+		for (int i = 0; i < transitions.length; i++) {
+			int next = trie[i];
+			transitions[i] = lengths[next] != 0 ? -next * width : next * width;
+		}
+		matchLength = Arrays.copyOf(lengths, count);
+	}
+
+	/**
+	 * Finds the earliest position in the message at which any of the break
+	 * strings starts.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return the position or -1 if none of the break strings occur in the
+	 *         message
+	 */
+	public int find(CharSequence message) {
+		int best = message.length();
+		if (maxLength > 0) {
+			int[] transitions = this.transitions;
+			int[] ascii = this.ascii;
+			int state = 0;
+			// a match ending at i starts at or after i - maxLength + 1, so the
+			// scan stops once no later match can start before the best match
+			int end = message.length();
+			for (int i = 0; i < end; i++) {
+				char c = message.charAt(i);
+				if (ignoreCase) {
+					c = lowerCase(c);
+				}
+				state = transitions[state + (c < 128 ? ascii[c] : indexOf(c))];
+				if (state < 0) {
+					state = -state;
+					best = Math.min(best, i - matchLength[state / width] + 1);
+					end = Math.min(end, best + maxLength - 1);
+				}
+			}
+		}
+		for (Pattern pattern : patterns) {
+			Matcher matcher = pattern.matcher(message);
+			if (matcher.find() && matcher.start() < best) {
+				best = matcher.start();
+			}
+		}
+		return best < message.length() ? best : -1;
+	}
+
+	private int indexOf(char c) {
+		if (c < 128) {
+			return ascii[c];
+		}
+		int idx = Arrays.binarySearch(others, c);
+		return idx >= 0 ? width - others.length + idx : 0;
+	}
+
+	private static char lowerCase(char c) {
+		if (c < 128) {
+			return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+		}
+		return Character.toLowerCase(c);
+	}
+
+	private static String lowerCase(String string) {
+		char[] chars = string.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = lowerCase(chars[i]);
+		}
+		return new String(chars);
+	}
+}
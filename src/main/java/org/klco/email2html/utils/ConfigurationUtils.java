@@ -49,30 +49,37 @@ public class ConfigurationUtils {
 	 * @return the email2 html configuration
 	 * @throws ClassNotFoundException 
 	 * @throws InstantiationException 
+	 * @throws IllegalArgumentException
+	 *             if the renditions are invalid
 	 */
 	public static Email2HTMLConfiguration loadProperties(Properties props) throws InstantiationException, ClassNotFoundException {
 		log.trace("loadProperties");
 		Email2HTMLConfiguration config = new Email2HTMLConfiguration();
 
 		for (Object key : props.keySet()) {
+			if (key.equals("renditions")) {
+				// not ignored like other invalid values, as the files of the
+				// renditions which are not configured are deleted
+				Rendition[] renditions = parseRenditions(props
+						.getProperty("renditions"));
+				log.info("Setting property {} to value {}", key, Arrays.toString(renditions));
+				config.setRenditions(renditions);
+				continue;
+			}
 			Field field = null;
 			try {
 				field = config.getClass().getDeclaredField(key.toString());
 				String value = props.getProperty(key.toString());
-				if (field.getName().equals("renditions")) {
-					String[] renditionStrs = value.split("\\,");
-					Rendition[] renditions = new Rendition[renditionStrs.length];
-					for (int i = 0; i < renditionStrs.length; i++) {
-						renditions[i] = Rendition.parse(renditionStrs[i]);
-					}
-					log.info("Setting property {} to value {}", key, Arrays.toString(renditions));
-					field.setAccessible(true);
-					field.set(config, renditions);
-				}else if(field.getName().equals("overwrite") || field.getName().equals("excludeDuplicates")){
+				if(field.getType() == boolean.class){
 					Boolean overwrite = Boolean.valueOf(value); 
 					log.info("Setting property {} to value {}", key, overwrite);
 					field.setAccessible(true);
 					field.set(config, overwrite);
+				} else if(field.getType() == int.class){
+					Integer intValue = Integer.valueOf(value.trim());
+					log.info("Setting property {} to value {}", key, intValue);
+					field.setAccessible(true);
+					field.set(config, intValue);
 				} else if(field.getName().equals("hook")){
 					config.setHook(value);
 				} else {
@@ -85,6 +92,8 @@ public class ConfigurationUtils {
 				log.warn("Exception getting field for property " + key, e);
 			} catch (NoSuchFieldException e) {
 				log.warn("No field found for property " + key, e);
+			} catch (NumberFormatException e) {
+				log.warn("Invalid number when setting property " + key, e);
 			} catch (IllegalArgumentException e) {
 				log.warn("Invalid value when setting property " + key, e);
 			} catch (IllegalAccessException e) {
@@ -93,4 +102,27 @@ public class ConfigurationUtils {
 		}
 		return config;
 	}
+
+	/**
+	 * Parses the comma separated rendition specifications.
+	 * 
+	 * @param value
+	 *            the renditions property
+	 * @return the renditions
+	 * @throws IllegalArgumentException
+	 *             if any of the renditions is invalid
+	 */
+	private static Rendition[] parseRenditions(String value) {
+		String[] renditionStrs = value.split("\\,");
+		Rendition[] renditions = new Rendition[renditionStrs.length];
+		for (int i = 0; i < renditionStrs.length; i++) {
+			try {
+				renditions[i] = Rendition.parse(renditionStrs[i]);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid rendition "
+						+ renditionStrs[i].trim(), e);
+			}
+		}
+		return renditions;
+	}
 }
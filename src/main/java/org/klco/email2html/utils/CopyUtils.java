@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Utilities for copying, digesting and replacing files. Files are copied and
+ * digested in blocks. Each thread reuses its own buffer, so the utilities may
+ * be called concurrently without allocating a new buffer for every file.
+ * 
+ * @author dklco
+ */
+public class CopyUtils {
+
+	/**
+	 * The size of the blocks read and written.
+	 */
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The buffer of each thread.
+	 */
+	private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(BUFFER_SIZE);
+		}
+	};
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory.getLogger(CopyUtils.class);
+
+	/**
+	 * Computes the digest of the contents of the file.
+	 * 
+	 * @param file
+	 *            the file to read
+	 * @param digest
+	 *            the digest to update with the contents of the file
+	 * @return the number of bytes read
+	 * @throws IOException
+	 */
+	public static long digest(File file, MessageDigest digest)
+			throws IOException {
+		log.trace("digest");
+		ByteBuffer buffer = BUFFER.get();
+		FileInputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			FileChannel channel = is.getChannel();
+			long count = 0;
+			buffer.clear();
+			for (int read = channel.read(buffer); read != -1; read = channel
+					.read(buffer)) {
+				digest.update(buffer.array(), 0, buffer.position());
+				count += buffer.position();
+				buffer.clear();
+			}
+			return count;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	/**
+	 * Copies the stream into the file, updating the digest with each block
+	 * written. The stream is not closed.
+	 * 
+	 * @param in
+	 *            the stream to copy
+	 * @param file
+	 *            the file to write, any existing contents are replaced
+	 * @param digest
+	 *            the digest to update with the contents of the stream, may be
+	 *            null
+	 * @return the number of bytes copied
+	 * @throws IOException
+	 */
+	public static long copy(InputStream in, File file, MessageDigest digest)
+			throws IOException {
+		log.trace("copy");
+		ByteBuffer buffer = BUFFER.get();
+		byte[] bytes = buffer.array();
+		FileOutputStream os = null;
+		try {
+			os = new FileOutputStream(file);
+			FileChannel channel = os.getChannel();
+			long count = 0;
+			for (int read = in.read(bytes); read != -1; read = in.read(bytes)) {
+				if (digest != null) {
+					digest.update(bytes, 0, read);
+				}
+				buffer.clear();
+				buffer.limit(read);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				count += read;
+			}
+			os.close();
+			return count;
+		} finally {
+			IOUtils.closeQuietly(os);
+		}
+	}
+
+	/**
+	 * Renames the file, replacing the target. Where the file system cannot
+	 * replace the target atomically, the target is deleted first.
+	 * 
+	 * @param from
+	 *            the file to rename
+	 * @param to
+	 *            the new name of the file
+	 * @throws IOException
+	 *             if the file could not be renamed, the file is deleted
+	 */
+	public static void rename(File from, File to) throws IOException {
+		if (!from.renameTo(to)) {
+			to.delete();
+			if (!from.renameTo(to)) {
+				from.delete();
+				throw new IOException("Unable to rename " + from + " to "
+						+ to);
+			}
+		}
+	}
+
+	/**
+	 * Flushes the directory to disk, so the files renamed into it survive a
+	 * crash. Not all platforms support syncing directories, in which case
+	 * this does nothing.
+	 * 
+	 * @param dir
+	 *            the directory
+	 */
+	public static void syncDirectory(File dir) {
+		try {
+			FileChannel channel = FileChannel.open(dir.toPath(),
+					StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			log.debug("Unable to sync directory " + dir, e);
+		}
+	}
+}
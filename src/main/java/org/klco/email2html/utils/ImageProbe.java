@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.klco.email2html.models.ImageInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the dimensions, EXIF orientation and capture date of an image from its
+ * header, without decoding the image. JPEG, PNG and GIF headers are parsed
+ * directly, other formats fall back to the header of the ImageIO reader.
+ * 
+ * @author dklco
+ */
+public class ImageProbe {
+
+	/**
+	 * Captures the start of a stream as it is read, so the header of an image
+	 * can be probed while the image is being copied.
+	 */
+	public static class HeadInputStream extends FilterInputStream {
+
+		private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+
+		/**
+		 * Creates a new stream capturing the head of the specified stream.
+		 * 
+		 * @param in
+		 *            the stream to read
+		 */
+		public HeadInputStream(InputStream in) {
+			super(in);
+		}
+
+		/**
+		 * Gets the captured head of the stream.
+		 * 
+		 * @return the bytes read, up to the head size
+		 */
+		public byte[] getHead() {
+			return head.toByteArray();
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1 && head.size() < HEAD_SIZE) {
+				head.write(b);
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0 && head.size() < HEAD_SIZE) {
+				head.write(b, off, Math.min(read, HEAD_SIZE - head.size()));
+			}
+			return read;
+		}
+	}
+
+	/**
+	 * The EXIF format of dates.
+	 */
+	private static final String EXIF_DATE_FORMAT = "yyyy:MM:dd HH:mm:ss";
+
+	/**
+	 * The maximum number of bytes captured from the head of a stream, enough
+	 * for the EXIF segment and the frame header of a JPEG.
+	 */
+	public static final int HEAD_SIZE = 256 * 1024;
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory.getLogger(ImageProbe.class);
+
+	private static final int TAG_DATE_TIME = 0x0132;
+
+	private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+
+	private static final int TAG_EXIF_IFD = 0x8769;
+
+	private static final int TAG_ORIENTATION = 0x0112;
+
+	/**
+	 * Probes the header of the image head.
+	 * 
+	 * @param head
+	 *            the start of the image
+	 * @return the image metadata or null if the head is not a complete JPEG,
+	 *         PNG or GIF header
+	 */
+	public static ImageInfo probe(byte[] head) {
+		try {
+			return probe(new ByteArrayInputStream(head));
+		} catch (IOException e) {
+			log.debug("Unable to probe image header", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Probes the header of the image file.
+	 * 
+	 * @param image
+	 *            the image file
+	 * @return the image metadata or null if the file is not a supported image
+	 */
+	public static ImageInfo probe(File image) {
+		log.trace("probe");
+		InputStream is = null;
+		try {
+			is = new BufferedInputStream(new FileInputStream(image));
+			ImageInfo info = probe(is);
+			if (info != null) {
+				return info;
+			}
+		} catch (IOException e) {
+			log.debug("Unable to probe image header of " + image, e);
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+		return probeReader(image);
+	}
+
+	private static ImageInfo probe(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		int b1 = in.read();
+		int b2 = in.read();
+		if (b1 == 0xFF && b2 == 0xD8) {
+			return probeJpeg(in);
+		} else if (b1 == 0x89 && b2 == 'P') {
+			return probePng(in);
+		} else if (b1 == 'G' && b2 == 'I') {
+			return probeGif(in);
+		}
+		return null;
+	}
+
+	private static ImageInfo probeGif(DataInputStream in) throws IOException {
+		byte[] header = new byte[8];
+		in.readFully(header);
+		ImageInfo info = new ImageInfo();
+		info.setWidth((header[4] & 0xFF) | (header[5] & 0xFF) << 8);
+		info.setHeight((header[6] & 0xFF) | (header[7] & 0xFF) << 8);
+		return info;
+	}
+
+	private static ImageInfo probeJpeg(DataInputStream in) throws IOException {
+		ImageInfo info = new ImageInfo();
+		try {
+			while (true) {
+				int marker = in.readUnsignedByte();
+				if (marker != 0xFF) {
+					continue;
+				}
+				while (marker == 0xFF) {
+					marker = in.readUnsignedByte();
+				}
+				if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+					continue;
+				}
+				if (marker == 0xD9 || marker == 0xDA) {
+					return null;
+				}
+				int length = in.readUnsignedShort() - 2;
+				if (length < 0) {
+					return null;
+				}
+				if (marker == 0xE1) {
+					byte[] segment = new byte[length];
+					in.readFully(segment);
+					readExif(segment, info);
+				} else if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4
+						&& marker != 0xC8 && marker != 0xCC) {
+					in.readUnsignedByte();
+					info.setHeight(in.readUnsignedShort());
+					info.setWidth(in.readUnsignedShort());
+					return info;
+				} else {
+					while (length > 0) {
+						int skipped = in.skipBytes(length);
+						if (skipped <= 0) {
+							in.readUnsignedByte();
+							skipped = 1;
+						}
+						length -= skipped;
+					}
+				}
+			}
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private static ImageInfo probePng(DataInputStream in) throws IOException {
+		byte[] header = new byte[22];
+		in.readFully(header);
+		if (header[10] != 'I' || header[11] != 'H' || header[12] != 'D'
+				|| header[13] != 'R') {
+			return null;
+		}
+		ImageInfo info = new ImageInfo();
+		info.setWidth(readInt(header, 14, true));
+		info.setHeight(readInt(header, 18, true));
+		return info;
+	}
+
+	private static ImageInfo probeReader(File image) {
+		ImageInputStream iis = null;
+		try {
+			iis = ImageIO.createImageInputStream(image);
+			if (iis != null) {
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+				if (readers.hasNext()) {
+					ImageReader reader = readers.next();
+					try {
+						reader.setInput(iis, true, true);
+						ImageInfo info = new ImageInfo();
+						info.setWidth(reader.getWidth(0));
+						info.setHeight(reader.getHeight(0));
+						return info;
+					} finally {
+						reader.dispose();
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.debug("Unable to read image header of " + image, e);
+		} finally {
+			if (iis != null) {
+				try {
+					iis.close();
+				} catch (IOException e) {
+					log.debug("Exception closing image stream", e);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the orientation and capture date from the EXIF segment, ignoring
+	 * any values which are malformed.
+	 */
+	private static void readExif(byte[] segment, ImageInfo info) {
+		if (segment.length < 14 || segment[0] != 'E' || segment[1] != 'x'
+				|| segment[2] != 'i' || segment[3] != 'f') {
+			return;
+		}
+		int base = 6;
+		boolean bigEndian = segment[base] == 'M';
+		try {
+			int ifd = base + readInt(segment, base + 4, bigEndian);
+			int exifIfd = -1;
+			String dateTime = null;
+			String dateTimeOriginal = null;
+			for (int pass = 0; pass < 2 && ifd > base; pass++) {
+				int count = readShort(segment, ifd, bigEndian);
+				for (int i = 0; i < count; i++) {
+					int entry = ifd + 2 + i * 12;
+					int tag = readShort(segment, entry, bigEndian);
+					if (tag == TAG_ORIENTATION && pass == 0) {
+						int orientation = readShort(segment, entry + 8,
+								bigEndian);
+						if (orientation >= 1 && orientation <= 8) {
+							info.setOrientation(orientation);
+						}
+					} else if (tag == TAG_EXIF_IFD && pass == 0) {
+						exifIfd = base + readInt(segment, entry + 8, bigEndian);
+					} else if (tag == TAG_DATE_TIME && pass == 0) {
+						dateTime = readAscii(segment, base, entry, bigEndian);
+					} else if (tag == TAG_DATE_TIME_ORIGINAL) {
+						dateTimeOriginal = readAscii(segment, base, entry,
+								bigEndian);
+					}
+				}
+				ifd = exifIfd;
+			}
+			String date = dateTimeOriginal != null ? dateTimeOriginal
+					: dateTime;
+			if (date != null) {
+				try {
+					info.setCaptureDate(new SimpleDateFormat(EXIF_DATE_FORMAT)
+							.parse(date));
+				} catch (ParseException e) {
+					log.debug("Invalid EXIF date {}", date);
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			log.debug("Malformed EXIF segment");
+		}
+	}
+
+	private static String readAscii(byte[] segment, int base, int entry,
+			boolean bigEndian) {
+		int count = readInt(segment, entry + 4, bigEndian);
+		int offset = count > 4 ? base + readInt(segment, entry + 8, bigEndian)
+				: entry + 8;
+		int end = offset;
+		while (end < offset + count && segment[end] != 0) {
+			end++;
+		}
+		return new String(segment, offset, end - offset).trim();
+	}
+
+	private static int readInt(byte[] b, int off, boolean bigEndian) {
+		if (bigEndian) {
+			return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16
+					| (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+		}
+		return (b[off + 3] & 0xFF) << 24 | (b[off + 2] & 0xFF) << 16
+				| (b[off + 1] & 0xFF) << 8 | (b[off] & 0xFF);
+	}
+
+	private static int readShort(byte[] b, int off, boolean bigEndian) {
+		if (bigEndian) {
+			return (b[off] & 0xFF) << 8 | (b[off + 1] & 0xFF);
+		}
+		return (b[off + 1] & 0xFF) << 8 | (b[off] & 0xFF);
+	}
+}
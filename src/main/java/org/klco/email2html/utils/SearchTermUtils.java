@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html.utils;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.search.AndTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SentDateTerm;
+import javax.mail.search.SizeTerm;
+import javax.mail.search.SubjectTerm;
+
+import org.apache.commons.lang.StringUtils;
+import org.klco.email2html.models.Email2HTMLConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Utilities for building the search used to select the messages on the mail
+ * server.
+ * 
+ * @author dklco
+ */
+public class SearchTermUtils {
+
+	/**
+	 * The format of the dates in the search configuration.
+	 */
+	public static final String DATE_FORMAT = "yyyy-MM-dd";
+
+	/**
+	 * Value of searchMatch for matching messages which match any of the
+	 * criteria.
+	 */
+	public static final String MATCH_ANY = "any";
+
+	/** The Constant log. */
+	private static final Logger log = LoggerFactory
+			.getLogger(SearchTermUtils.class);
+
+	/**
+	 * Builds the search term from the search criteria in the configuration.
+	 * The criteria are combined so that a message must match all of them,
+	 * unless searchMatch is set to any. Multiple comma separated values for
+	 * the sender or recipient match any of the values.
+	 * 
+	 * @param config
+	 *            the configuration
+	 * @return the search term or null if no search criteria are configured
+	 * @throws IllegalArgumentException
+	 *             if the search criteria are invalid
+	 */
+	public static SearchTerm buildSearchTerm(Email2HTMLConfiguration config) {
+		log.trace("buildSearchTerm");
+		List<SearchTerm> terms = new ArrayList<SearchTerm>();
+
+		if (config.getSearchSubject() != null) {
+			terms.add(new SubjectTerm(config.getSearchSubject()));
+		}
+		if (config.getSearchFrom() != null) {
+			List<SearchTerm> from = new ArrayList<SearchTerm>();
+			for (String address : config.getSearchFrom().split("\\,")) {
+				if (StringUtils.isNotBlank(address)) {
+					from.add(new FromStringTerm(address.trim()));
+				}
+			}
+			addAny(terms, from);
+		}
+		if (config.getSearchTo() != null) {
+			List<SearchTerm> to = new ArrayList<SearchTerm>();
+			for (String address : config.getSearchTo().split("\\,")) {
+				if (StringUtils.isNotBlank(address)) {
+					to.add(new RecipientStringTerm(Message.RecipientType.TO,
+							address.trim()));
+				}
+			}
+			addAny(terms, to);
+		}
+		if (config.getSearchSentSince() != null) {
+			terms.add(new SentDateTerm(ComparisonTerm.GE, parseDate(
+					"searchSentSince", config.getSearchSentSince())));
+		}
+		if (config.getSearchSentBefore() != null) {
+			terms.add(new SentDateTerm(ComparisonTerm.LT, parseDate(
+					"searchSentBefore", config.getSearchSentBefore())));
+		}
+		if (config.getSearchReceivedSince() != null) {
+			terms.add(new ReceivedDateTerm(ComparisonTerm.GE, parseDate(
+					"searchReceivedSince", config.getSearchReceivedSince())));
+		}
+		if (config.getSearchReceivedBefore() != null) {
+			terms.add(new ReceivedDateTerm(ComparisonTerm.LT, parseDate(
+					"searchReceivedBefore", config.getSearchReceivedBefore())));
+		}
+		if (config.isSearchUnseen()) {
+			terms.add(new FlagTerm(new Flags(Flags.Flag.SEEN), false));
+		}
+		// IMAP only has LARGER and SMALLER, any other size comparison makes
+		// JavaMail fall back to searching every message on the client
+		if (config.getSearchMinSize() > 0) {
+			terms.add(new SizeTerm(ComparisonTerm.GT,
+					config.getSearchMinSize() - 1));
+		}
+		if (config.getSearchMaxSize() > 0) {
+			terms.add(new SizeTerm(ComparisonTerm.LT,
+					config.getSearchMaxSize() + 1));
+		}
+
+		if (terms.isEmpty()) {
+			return null;
+		} else if (terms.size() == 1) {
+			return terms.get(0);
+		} else if (MATCH_ANY.equalsIgnoreCase(config.getSearchMatch())) {
+			return new OrTerm(terms.toArray(new SearchTerm[terms.size()]));
+		} else {
+			return new AndTerm(terms.toArray(new SearchTerm[terms.size()]));
+		}
+	}
+
+	private static void addAny(List<SearchTerm> terms, List<SearchTerm> any) {
+		if (any.size() == 1) {
+			terms.add(any.get(0));
+		} else if (any.size() > 1) {
+			terms.add(new OrTerm(any.toArray(new SearchTerm[any.size()])));
+		}
+	}
+
+	private static Date parseDate(String property, String value) {
+		try {
+			return new SimpleDateFormat(DATE_FORMAT).parse(value.trim());
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("Invalid date " + value
+					+ " for " + property + ", expected format " + DATE_FORMAT);
+		}
+	}
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.klco.email2html.models.Email2HTMLConfiguration;
+
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+
+/**
+ * Reads messages from an in-process IMAP server through a proxy which is able
+ * to drop the connections to the server.
+ * 
+ * @author dklco
+ */
+public class EmailReaderImapTest {
+
+	private static final int FETCH_SIZE = 2;
+
+	private static final int MESSAGES = 12;
+
+	private File dir;
+
+	private GreenMail greenMail;
+
+	private File outputDir;
+
+	private ImapProxy proxy;
+
+	private GreenMailUser user;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("email2html-test", "");
+		dir.delete();
+		dir.mkdirs();
+		outputDir = new File(dir, "out");
+		FileUtils.writeStringToFile(new File(dir, "template.html"),
+				"<h1>${subject}</h1><div>${message}</div>", "UTF-8");
+
+		greenMail = new GreenMail(new ServerSetup(freePort(), "127.0.0.1",
+				ServerSetup.PROTOCOL_IMAP));
+		greenMail.start();
+		user = greenMail.setUser("user@localhost", "user",
+				"password");
+		Session session = Session.getInstance(new Properties());
+		for (int i = 0; i < MESSAGES; i++) {
+			MimeMessage message = new MimeMessage(session);
+			message.setFrom(new InternetAddress("sender@localhost"));
+			message.setRecipient(Message.RecipientType.TO,
+					new InternetAddress("user@localhost"));
+			message.setSubject("Message " + i);
+			message.setSentDate(new Date(1000000000000L + i * 1000L));
+			message.setText("Body " + i);
+			user.deliver(message);
+		}
+		proxy = new ImapProxy(greenMail.getImap().getPort());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		proxy.close();
+		greenMail.stop();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testPartitions() throws Exception {
+		new EmailReader(createConfig(3)).readEmails(createSession());
+
+		assertPages(MESSAGES);
+		// 12 messages over 3 connections are read as partitions of 4
+		// messages, each prefetched in 2 chunks on its own connection
+		assertEquals(3, proxy.prefetches.size());
+		for (AtomicInteger prefetches : proxy.prefetches.values()) {
+			assertEquals(2, prefetches.get());
+		}
+	}
+
+	@Test
+	public void testSearchSize() throws Exception {
+		Session session = Session.getInstance(new Properties());
+		for (int i = 0; i < 3; i++) {
+			MimeMessage message = new MimeMessage(session);
+			message.setFrom(new InternetAddress("sender@localhost"));
+			message.setSubject("Large " + i);
+			message.setSentDate(new Date(1000000000000L + i * 1000L));
+			message.setText("Large body " + StringUtils.repeat("x", 5000));
+			user.deliver(message);
+		}
+		Email2HTMLConfiguration config = createConfig(1);
+		config.setSearchMinSize(4000);
+		config.setSearchMaxSize(100000);
+		new EmailReader(config).readEmails(createSession());
+
+		File[] pages = new File(outputDir, "_posts").listFiles();
+		assertEquals(3, pages.length);
+		for (File page : pages) {
+			assertTrue(page.getName(), page.getName().contains("-large-"));
+		}
+		// the size limits are sent to the server rather than each message
+		// being checked on the client
+		boolean searched = false;
+		for (String command : proxy.commands) {
+			if (command.contains(" SEARCH ")) {
+				assertTrue(command, command.contains("LARGER 3999"));
+				assertTrue(command, command.contains("SMALLER 100001"));
+				searched = true;
+			}
+			assertFalse(command, command.matches("(?s).*FETCH \\d+ \\(RFC822\\.SIZE\\).*"));
+		}
+		assertTrue(searched);
+	}
+
+	@Test
+	public void testConnectionDropped() throws Exception {
+		// drop the connection while the second chunk of a partition is
+		// prefetched
+		proxy.dropOnPrefetch = 2;
+		new EmailReader(createConfig(2)).readEmails(createSession());
+		assertEquals(1, proxy.dropped.get());
+
+		// the chunk is fetched again on a new connection and the messages
+		// which were already queued are loaded again from it, so no message
+		// is lost
+		assertPages(MESSAGES);
+	}
+
+	@Test
+	public void testWatchStop() throws Exception {
+		Email2HTMLConfiguration config = createConfig(1);
+		config.setPollInterval(1);
+		final EmailReader reader = new EmailReader(config);
+		final Session session = createSession();
+		reader.readEmails(session);
+		Thread watcher = new Thread() {
+			@Override
+			public void run() {
+				reader.watch(session);
+			}
+		};
+		watcher.start();
+
+		MimeMessage message = new MimeMessage(Session
+				.getInstance(new Properties()));
+		message.setFrom(new InternetAddress("sender@localhost"));
+		message.setSubject("Message " + MESSAGES);
+		message.setSentDate(new Date(1000000000000L + MESSAGES * 1000L));
+		message.setText("Body " + MESSAGES);
+		user.deliver(message);
+		for (int i = 0; i < 100 && countPages() <= MESSAGES; i++) {
+			Thread.sleep(100);
+		}
+		assertPages(MESSAGES + 1);
+
+		// stopping ends the wait for new messages, so the watcher returns
+		// straight away rather than after the keep alive interval
+		reader.stop();
+		watcher.join(5000);
+		assertFalse(watcher.isAlive());
+	}
+
+	private void assertPages(int count) throws IOException {
+		assertEquals(count, countPages());
+		for (int i = 0; i < count; i++) {
+			File page = new File(new File(outputDir, "_posts"), String.format(
+					"%1$tY-%1$tm-%1$td-message-%2$d.html", new Date(
+							1000000000000L + i * 1000L), i));
+			assertTrue(page.getName(), page.exists());
+		}
+	}
+
+	private int countPages() {
+		File[] pages = new File(outputDir, "_posts").listFiles();
+		return pages != null ? pages.length : 0;
+	}
+
+	private Email2HTMLConfiguration createConfig(int connections) {
+		Email2HTMLConfiguration config = new Email2HTMLConfiguration();
+		config.setOutputDir(outputDir.getAbsolutePath());
+		config.setTemplate(new File(dir, "template.html").getAbsolutePath());
+		config.setProtocol("imap");
+		config.setUrl("127.0.0.1");
+		config.setUsername("user");
+		config.setPassword("password");
+		config.setFolder("INBOX");
+		config.setConnections(connections);
+		config.setFetchSize(FETCH_SIZE);
+		config.setWorkerThreads(2);
+		config.setIncremental(true);
+		return config;
+	}
+
+	private Session createSession() {
+		Properties props = new Properties();
+		props.setProperty("mail.imap.port", String.valueOf(proxy.getPort()));
+		return Session.getInstance(props);
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Forwards connections to the IMAP server, recording the commands, counting
+	 * the prefetch commands sent on each connection and dropping the first
+	 * connection to send the configured number of prefetch commands.
+	 */
+	private static class ImapProxy implements Runnable {
+
+		private final List<String> commands = new CopyOnWriteArrayList<String>();
+
+		private final AtomicInteger dropped = new AtomicInteger();
+
+		private volatile int dropOnPrefetch = 0;
+
+		private final Map<Socket, AtomicInteger> prefetches = Collections
+				.synchronizedMap(new LinkedHashMap<Socket, AtomicInteger>());
+
+		private final ServerSocket serverSocket;
+
+		private final List<Socket> sockets = Collections
+				.synchronizedList(new ArrayList<Socket>());
+
+		private final int target;
+
+		public ImapProxy(int target) throws IOException {
+			this.target = target;
+			serverSocket = new ServerSocket(0, 50,
+					InetAddress.getByName("127.0.0.1"));
+			Thread thread = new Thread(this, "imap-proxy");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void close() throws IOException {
+			serverSocket.close();
+			synchronized (sockets) {
+				for (Socket socket : sockets) {
+					socket.close();
+				}
+			}
+		}
+
+		public int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Socket client = serverSocket.accept();
+					final Socket server = new Socket("127.0.0.1", target);
+					sockets.add(client);
+					sockets.add(server);
+					pump(server, client, null);
+					pump(client, server, client);
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		/**
+		 * Copies from one socket to the other, inspecting the commands if the
+		 * source is the client.
+		 */
+		private void pump(final Socket from, final Socket to,
+				final Socket client) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					byte[] buffer = new byte[8192];
+					try {
+						InputStream is = from.getInputStream();
+						OutputStream os = to.getOutputStream();
+						int read;
+						while ((read = is.read(buffer)) != -1) {
+							if (client != null
+									&& isDropped(client, new String(buffer, 0,
+											read, "ISO-8859-1"))) {
+								from.close();
+								to.close();
+								return;
+							}
+							os.write(buffer, 0, read);
+							os.flush();
+						}
+					} catch (IOException e) {
+						// closed
+					}
+					try {
+						from.close();
+						to.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}, "imap-proxy-pump");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private boolean isDropped(Socket client, String command) {
+			commands.add(command);
+			if (!command.contains("BODYSTRUCTURE")) {
+				return false;
+			}
+			AtomicInteger count;
+			synchronized (prefetches) {
+				count = prefetches.get(client);
+				if (count == null) {
+					count = new AtomicInteger();
+					prefetches.put(client, count);
+				}
+			}
+			return count.incrementAndGet() == dropOnPrefetch
+					&& dropped.compareAndSet(0, 1);
+		}
+	}
+}
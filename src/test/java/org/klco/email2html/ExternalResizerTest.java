@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.klco.email2html.models.Rendition;
+
+/**
+ * Runs the external resizer against a shell script standing in for the
+ * resize command.
+ * 
+ * @author dklco
+ */
+public class ExternalResizerTest {
+
+	private File dir;
+
+	private ExternalResizer resizer;
+
+	private File script;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("email2html-test", "");
+		dir.delete();
+		dir.mkdirs();
+		// the first argument selects the behaviour, the last argument is the
+		// file the final rendition is written to
+		script = new File(dir, "resize.sh");
+		FileUtils.writeStringToFile(script, "case \"$1\" in\n"
+				+ "ok) for last; do :; done; echo resized > \"$last\" ;;\n"
+				+ "fail) echo \"bad image\"; exit 3 ;;\n"
+				+ "hang) exec sleep 30 ;;\n" + "esac\n", "UTF-8");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (resizer != null) {
+			resizer.shutdown();
+		}
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testResize() throws Exception {
+		File target = new File(dir, "thumb-photo.jpg");
+		resize("ok", 10, target);
+		assertEquals("resized", FileUtils.readFileToString(target, "UTF-8")
+				.trim());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		try {
+			resize("fail", 10, new File(dir, "thumb-photo.jpg"));
+			fail("Expected the resize to fail");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(),
+					e.getMessage().contains("failed with exit code 3"));
+			assertTrue(e.getMessage(), e.getMessage().contains("bad image"));
+		}
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		long start = System.currentTimeMillis();
+		try {
+			resize("hang", 1, new File(dir, "thumb-photo.jpg"));
+			fail("Expected the resize to time out");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(),
+					e.getMessage().contains("timed out after 1s"));
+		}
+		// the process is killed rather than left to finish
+		assertTrue(System.currentTimeMillis() - start < 10000);
+	}
+
+	private void resize(String behaviour, int timeout, File target)
+			throws IOException, InterruptedException {
+		resizer = new ExternalResizer("sh " + script.getAbsolutePath() + " "
+				+ behaviour, 1, timeout);
+		resizer.resize(new File(dir, "photo.jpg"),
+				new Rendition[] { Rendition.parse("thumb 50 50") },
+				new File[] { target });
+	}
+}
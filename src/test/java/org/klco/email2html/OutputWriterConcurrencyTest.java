@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.activation.DataHandler;
+import javax.imageio.ImageIO;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.klco.email2html.models.Email2HTMLConfiguration;
+import org.klco.email2html.models.EmailMessage;
+import org.klco.email2html.models.Rendition;
+
+/**
+ * Stress test for writing attachments, renditions and messages from many
+ * threads into the same folders.
+ * 
+ * @author dklco
+ */
+public class OutputWriterConcurrencyTest {
+
+	/**
+	 * The number of distinct sent dates, the messages of each date share an
+	 * attachment folder.
+	 */
+	private static final int DATES = 3;
+
+	private static final int MESSAGES = 120;
+
+	private static final int THREADS = 8;
+
+	private File dir;
+
+	private byte[] image;
+
+	private File outputDir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("email2html-test", "");
+		dir.delete();
+		dir.mkdirs();
+		outputDir = new File(dir, "out");
+		FileUtils.writeStringToFile(new File(dir, "template.html"),
+				"<h1>${subject}</h1>${#each attachments as a}[${a}]${/each}"
+						+ "<div>${message}</div>", "UTF-8");
+
+		BufferedImage img = new BufferedImage(400, 300,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		g.setColor(Color.BLUE);
+		g.fillRect(0, 0, 200, 150);
+		g.dispose();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		ImageIO.write(img, "png", os);
+		image = os.toByteArray();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testConcurrentWrites() throws Exception {
+		Email2HTMLConfiguration config = new Email2HTMLConfiguration();
+		config.setOutputDir(outputDir.getAbsolutePath());
+		config.setTemplate(new File(dir, "template.html").getAbsolutePath());
+		config.setRenditions(new Rendition[] { Rendition.parse("thumb 50 50") });
+		config.setRenditionThreads(2);
+		final OutputWriter writer = new OutputWriter(config);
+
+		// every message is written twice, by different threads, so the
+		// same message file and attachment files are written concurrently
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<EmailMessage>> results = new ArrayList<Future<EmailMessage>>();
+		for (int i = 0; i < MESSAGES * 2; i++) {
+			final int n = i % MESSAGES;
+			results.add(executor.submit(new Callable<EmailMessage>() {
+				public EmailMessage call() throws Exception {
+					start.await();
+					EmailMessage message = createMessage(n);
+					writer.addAttachment(message,
+							createPart("photo.png", "image/png", image));
+					writer.addAttachment(message, createPart(
+							"note-" + n + ".txt", "application/octet-stream",
+							("note " + n).getBytes("UTF-8")));
+					writer.awaitRenditions(message);
+					writer.writeHTML(message);
+					return message;
+				}
+			}));
+		}
+		start.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(2, TimeUnit.MINUTES));
+		for (Future<EmailMessage> result : results) {
+			// rethrows any exception from the writer
+			result.get();
+		}
+		writer.close();
+
+		File[] folders = new File(outputDir, config.getImagesSubDir())
+				.listFiles();
+		assertEquals(DATES, folders.length);
+		int photos = 0;
+		for (File folder : folders) {
+			File photo = new File(folder, "photo.png");
+			if (photo.exists()) {
+				photos++;
+				assertTrue(Arrays.equals(image,
+						FileUtils.readFileToByteArray(photo)));
+				assertTrue(new File(folder, "thumb-photo.png").length() > 0);
+			}
+			for (File file : folder.listFiles()) {
+				assertFalse("Temporary file left " + file,
+						file.getName().endsWith(".tmp"));
+			}
+		}
+		// the image is the same in every message, so it is only written to
+		// the first folder and excluded from the others as a duplicate
+		assertEquals(1, photos);
+
+		for (int n = 0; n < MESSAGES; n++) {
+			EmailMessage message = createMessage(n);
+			File note = new File(new File(new File(outputDir,
+					config.getImagesSubDir()), folderName(n)), "note-" + n
+					+ ".txt");
+			assertEquals("note " + n,
+					FileUtils.readFileToString(note, "UTF-8"));
+			assertTrue(writer.fileExists(message));
+		}
+		File[] pages = new File(outputDir, config.getMessagesSubDir())
+				.listFiles();
+		assertEquals(MESSAGES, pages.length);
+		for (File page : pages) {
+			String content = FileUtils.readFileToString(page, "UTF-8");
+			assertTrue(content, content.matches(
+					"<h1>Message \\d+</h1>(\\[photo.png\\])?\\[note-\\d+.txt\\]"
+							+ "<div>Body \\d+</div>"));
+		}
+	}
+
+	@Test
+	public void testDuplicateKeepsExistingFile() throws Exception {
+		Email2HTMLConfiguration config = new Email2HTMLConfiguration();
+		config.setOutputDir(outputDir.getAbsolutePath());
+		config.setTemplate(new File(dir, "template.html").getAbsolutePath());
+		OutputWriter writer = new OutputWriter(config);
+		try {
+			writer.addAttachment(createMessage(0), createPart("photo.png",
+					"image/png", image));
+			writer.addAttachment(createMessage(1), createPart("note.txt",
+					"application/octet-stream", "note".getBytes("UTF-8")));
+			// messages 1 and 4 share a folder, the duplicate of the photo is
+			// skipped without touching the note already at its path
+			assertFalse(writer.writeAttachment(createMessage(4), createPart(
+					"note.txt", "application/octet-stream", image)));
+		} finally {
+			writer.close();
+		}
+		File note = new File(new File(new File(outputDir,
+				config.getImagesSubDir()), folderName(1)), "note.txt");
+		assertEquals("note", FileUtils.readFileToString(note, "UTF-8"));
+	}
+
+	private EmailMessage createMessage(int n) {
+		EmailMessage message = new EmailMessage();
+		message.setSubject("Message " + n);
+		message.setSender("Sender");
+		message.setSentDate(new Date(1000000000000L + (n % DATES) * 1000L));
+		message.setMessage("Body " + n);
+		return message;
+	}
+
+	private MimeBodyPart createPart(String name, String type, byte[] content)
+			throws Exception {
+		MimeBodyPart part = new MimeBodyPart();
+		part.setDataHandler(new DataHandler(new ByteArrayDataSource(content,
+				type)));
+		part.setFileName(name);
+		part.setHeader("Content-Type", type);
+		return part;
+	}
+
+	private String folderName(int n) {
+		return new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss")
+				.format(new Date(1000000000000L + (n % DATES) * 1000L));
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.klco.email2html.models.Rendition;
+
+/**
+ * Tests creating the renditions of an image.
+ * 
+ * @author dklco
+ */
+public class RenditionGeneratorTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("email2html-test", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testExtensionlessImage() throws Exception {
+		File rendition = createRendition("photo", "png");
+		assertEquals("png", getFormat(rendition).toLowerCase());
+	}
+
+	@Test
+	public void testUnknownExtension() throws Exception {
+		File rendition = createRendition("photo.dat", "jpeg");
+		assertEquals("jpeg", getFormat(rendition).toLowerCase());
+	}
+
+	@Test
+	public void testExtension() throws Exception {
+		File rendition = createRendition("photo.png", "jpeg");
+		assertEquals("png", getFormat(rendition).toLowerCase());
+	}
+
+	@Test
+	public void testRenditions() throws Exception {
+		File original = writeImage("photo.png", "png", 800, 600);
+		Rendition[] renditions = RenditionGenerator.sortLargestFirst(new Rendition[] {
+				Rendition.parse("thumb 50 50"), Rendition.parse("large 400 400"),
+				Rendition.parse("square 100 100 true") });
+		assertEquals("large", renditions[0].getName());
+		assertEquals("thumb", renditions[2].getName());
+
+		// every rendition is created from a single decode, each scaled from
+		// the previous one
+		RenditionGenerator generator = new RenditionGenerator(original);
+		for (Rendition rendition : renditions) {
+			generator.create(rendition,
+					new File(dir, rendition.getFileName("photo.png")));
+		}
+		assertSize(400, 300, "large-photo.png");
+		assertSize(100, 100, "square-photo.png");
+		assertSize(50, 38, "thumb-photo.png");
+
+		// a rendition larger than the previous one decodes the image again
+		// rather than scaling up the thumbnail
+		generator.create(Rendition.parse("medium 200 200"), new File(dir,
+				"medium-photo.png"));
+		assertSize(200, 150, "medium-photo.png");
+	}
+
+	@Test
+	public void testSubsampling() throws Exception {
+		Rendition thumb = Rendition.parse("thumb 100 100");
+		assertEquals(1, RenditionGenerator.getSubsampling(100, 100, thumb));
+		assertEquals(1, RenditionGenerator.getSubsampling(300, 300, thumb));
+		assertEquals(2, RenditionGenerator.getSubsampling(400, 400, thumb));
+		// the longest side limits the scale
+		assertEquals(30, RenditionGenerator.getSubsampling(6000, 4000, thumb));
+		assertEquals(1, RenditionGenerator.getSubsampling(50, 50, thumb));
+
+		// the subsampled image still leaves enough pixels for the rendition
+		File original = writeImage("photo.png", "png", 3000, 2000);
+		new RenditionGenerator(original).create(thumb, new File(dir,
+				"thumb-photo.png"));
+		assertSize(100, 67, "thumb-photo.png");
+	}
+
+	private void assertSize(int width, int height, String fileName)
+			throws IOException {
+		BufferedImage image = ImageIO.read(new File(dir, fileName));
+		assertEquals(fileName, width, image.getWidth());
+		assertEquals(fileName, height, image.getHeight());
+	}
+
+	private File writeImage(String fileName, String format, int width,
+			int height) throws IOException {
+		BufferedImage img = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		g.setColor(Color.BLUE);
+		g.fillRect(0, 0, width / 2, height / 2);
+		g.dispose();
+		File file = new File(dir, fileName);
+		assertTrue(ImageIO.write(img, format, file));
+		return file;
+	}
+
+	/**
+	 * Writes an image in the format to the file and creates its thumbnail
+	 * rendition.
+	 */
+	private File createRendition(String fileName, String format)
+			throws IOException {
+		File original = writeImage(fileName, format, 400, 300);
+
+		Rendition thumb = Rendition.parse("thumb 50 50");
+		File renditionFile = new File(dir, thumb.getFileName(fileName));
+		new RenditionGenerator(original).create(thumb, renditionFile);
+		assertTrue(renditionFile.length() > 0);
+		BufferedImage scaled = ImageIO.read(renditionFile);
+		assertEquals(50, scaled.getWidth());
+		return renditionFile;
+	}
+
+	private String getFormat(File file) throws IOException {
+		ImageInputStream iis = ImageIO.createImageInputStream(file);
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			assertTrue(readers.hasNext());
+			return readers.next().getFormatName();
+		} finally {
+			iis.close();
+		}
+	}
+}
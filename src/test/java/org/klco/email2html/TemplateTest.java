@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.owasp.html.Sanitizers;
+
+/**
+ * Tests compiling and rendering message templates.
+ * 
+ * @author dklco
+ */
+public class TemplateTest {
+
+	@Test
+	public void testVariables() throws IOException {
+		Map<String, Object> image = new HashMap<String, Object>();
+		image.put("width", 640);
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("subject", "Hello");
+		params.put("image", image);
+		assertEquals("<h1>Hello</h1>640",
+				render("<h1>${subject}</h1>${image.width}", params));
+	}
+
+	@Test
+	public void testUnresolved() throws IOException {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("subject", "Hello");
+		assertEquals("${missing} ${subject.length} ${ other }", render(
+				"${missing} ${subject.length} ${ other }", params));
+	}
+
+	@Test
+	public void testEscape() throws IOException {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("subject", "Hello");
+		assertEquals("${subject} costs $5 Hello",
+				render("$${subject} costs $5 ${subject}", params));
+	}
+
+	@Test
+	public void testEachList() throws IOException {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("names", Arrays.asList("a.jpg", "b.jpg"));
+		assertEquals("[a.jpg][b.jpg]",
+				render("${#each names as name}[${name}]${/each}", params));
+	}
+
+	@Test
+	public void testEachArray() throws IOException {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("sizes", new int[] { 1, 2, 3 });
+		assertEquals("1,2,3,",
+				render("${#each sizes as size}${size},${/each}", params));
+	}
+
+	@Test
+	public void testEachMap() throws IOException {
+		Map<String, Object> renditions = new LinkedHashMap<String, Object>();
+		renditions.put("large", Collections.singletonMap("width", 800));
+		renditions.put("thumb", Collections.singletonMap("width", 100));
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("renditions", renditions);
+		assertEquals("large=800 thumb=100 ", render(
+				"${#each renditions as r}${r.key}=${r.value.width} ${/each}",
+				params));
+	}
+
+	@Test
+	public void testEachNested() throws IOException {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("rows", Arrays.asList(Arrays.asList(1, 2),
+				Arrays.asList(3)));
+		params.put("sep", "|");
+		assertEquals("12|3|", render("${#each rows as row}${#each row as n}"
+				+ "${n}${/each}${sep}${/each}", params));
+	}
+
+	@Test
+	public void testEachMissing() throws IOException {
+		assertEquals("<ul></ul>", render(
+				"<ul>${#each missing as item}<li>${item}</li>${/each}</ul>",
+				new HashMap<String, Object>()));
+	}
+
+	@Test
+	public void testIf() throws IOException {
+		String template = "${#if value}yes${#else}no${/if}";
+		assertEquals("yes", render(template, "value", "text"));
+		assertEquals("yes", render(template, "value", Boolean.TRUE));
+		assertEquals("yes", render(template, "value", 0));
+		assertEquals("yes", render(template, "value", Arrays.asList(1)));
+		assertEquals("yes",
+				render(template, "value", Collections.singletonMap("a", 1)));
+		assertEquals("no", render(template, "value", null));
+		assertEquals("no", render(template, "value", Boolean.FALSE));
+		assertEquals("no", render(template, "value", ""));
+		assertEquals("no",
+				render(template, "value", Collections.emptyList()));
+		assertEquals("no", render(template, "value", Collections.emptyMap()));
+	}
+
+	@Test
+	public void testIfRenderable() throws IOException {
+		String template = "${#if message}<div>${message}</div>${/if}";
+		assertEquals("<div><b>Hi</b></div>", render(template, "message",
+				new SanitizedHtml("<b>Hi</b>", Sanitizers.FORMATTING)));
+		assertEquals("", render(template, "message", new SanitizedHtml("",
+				Sanitizers.FORMATTING)));
+		// nothing is left once the script is removed
+		assertEquals("", render(template, "message", new SanitizedHtml(
+				"<script>alert(1)</script>", Sanitizers.FORMATTING)));
+	}
+
+	@Test
+	public void testIfWithoutElse() throws IOException {
+		assertEquals("[]", render("[${#if value}yes${/if}]", "value", ""));
+	}
+
+	@Test
+	public void testUnclosedEach() {
+		assertInvalid("<ul>\n${#each names as name}\n<li>${name}</li>\n</ul>",
+				"Missing ${/each} in template at line 2");
+	}
+
+	@Test
+	public void testUnclosedIf() {
+		assertInvalid("\n\n${#if value}yes${#else}no",
+				"Missing ${/if} in template at line 3");
+	}
+
+	@Test
+	public void testInvalidEach() {
+		assertInvalid("${#each names}${/each}",
+				"Expected ${#each name as item} in template at line 1");
+	}
+
+	@Test
+	public void testStrayTag() {
+		assertInvalid("<div>\n</div>${/if}\n",
+				"Unexpected ${/if} in template at line 2");
+	}
+
+	@Test
+	public void testMismatchedTag() {
+		assertInvalid("${#if value}\n${/each}",
+				"Missing ${/if} in template at line 1");
+	}
+
+	private void assertInvalid(String template, String message) {
+		try {
+			new Template(template);
+			fail("Expected the template to be invalid");
+		} catch (IllegalArgumentException e) {
+			assertEquals(message, e.getMessage());
+		}
+	}
+
+	private String render(String template, String name, Object value)
+			throws IOException {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put(name, value);
+		return render(template, params);
+	}
+
+	private String render(String template, Map<String, Object> params)
+			throws IOException {
+		StringWriter writer = new StringWriter();
+		new Template(template).render(params, writer);
+		return writer.toString();
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the break string matcher against a loop calling indexOf for each
+ * break string, which the matcher replaced.
+ * 
+ * @author dklco
+ */
+public class BreakStringMatcherTest {
+
+	@Test
+	public void testOverlapping() {
+		assertFind("ushers", false, "she", "he", "hers");
+		assertFind("xabcd", false, "bc", "abcd");
+		assertFind("aaab", false, "aab", "aaaa", "ab");
+		assertFind("abababc", false, "ababc", "babc", "c");
+	}
+
+	@Test
+	public void testPositionZero() {
+		assertFind("-- \nsignature", false, "-- ", "signature");
+		assertEquals(0, new BreakStringMatcher(new String[] { "a" }, false)
+				.find("a"));
+	}
+
+	@Test
+	public void testNoMatch() {
+		assertFind("Hello world", false, "Goodbye", "worlds", "xyz");
+		assertEquals(-1, new BreakStringMatcher(new String[] { "abc" },
+				false).find(""));
+		assertEquals(-1, new BreakStringMatcher(new String[0], false)
+				.find("abc"));
+	}
+
+	@Test
+	public void testBlank() {
+		// blank break strings are ignored rather than matching at 0
+		assertEquals(6, new BreakStringMatcher(new String[] { "", " ",
+				"world" }, false).find("Hello world"));
+	}
+
+	@Test
+	public void testIgnoreCase() {
+		assertFind("Thanks\n-----Original Message-----", true,
+				"-----original message-----");
+		assertFind("Gr\u00fc\u00dfe\n\u00c4RGER", true, "\u00e4rger", "GR\u00dcSSE");
+		assertEquals(-1, new BreakStringMatcher(
+				new String[] { "original message" }, false)
+				.find("ORIGINAL MESSAGE"));
+	}
+
+	@Test
+	public void testRegex() {
+		BreakStringMatcher matcher = new BreakStringMatcher(new String[] {
+				"regex:On .* wrote:", "-- " }, false);
+		assertEquals(6, matcher.find("Hello\nOn Monday, Bob wrote:\n-- "));
+		assertEquals(6, matcher.find("Hello\n-- \nOn Monday, Bob wrote:"));
+		assertEquals(-1, matcher.find("Hello"));
+		assertEquals(6, new BreakStringMatcher(
+				new String[] { "regex:on .* WROTE:" }, true)
+				.find("Hello\nOn Monday, Bob wrote:"));
+	}
+
+	@Test
+	public void testRandom() {
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			String[] breakStrings = new String[1 + random.nextInt(6)];
+			for (int j = 0; j < breakStrings.length; j++) {
+				breakStrings[j] = randomString(random, 1 + random.nextInt(4));
+			}
+			assertFind(randomString(random, random.nextInt(60)),
+					random.nextBoolean(), breakStrings);
+		}
+	}
+
+	/**
+	 * Asserts the matcher finds the same position as the indexOf loop.
+	 */
+	private void assertFind(String message, boolean ignoreCase,
+			String... breakStrings) {
+		assertEquals(message, indexOfLoop(message, breakStrings, ignoreCase),
+				new BreakStringMatcher(breakStrings, ignoreCase).find(message));
+	}
+
+	private int indexOfLoop(String message, String[] breakStrings,
+			boolean ignoreCase) {
+		int best = -1;
+		for (String breakString : breakStrings) {
+			int index = ignoreCase ? message.toLowerCase().indexOf(
+					breakString.toLowerCase()) : message.indexOf(breakString);
+			if (index != -1 && (best == -1 || index < best)) {
+				best = index;
+			}
+		}
+		return best;
+	}
+
+	private String randomString(Random random, int length) {
+		String alphabet = "abcAB\u00e4\u00c4";
+		StringBuilder string = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			string.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return string.toString();
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012 Dan Klco
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in 
+ * the Software without restriction, including without limitation the rights to 
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies 
+ * of the Software, and to permit persons to whom the Software is furnished to do 
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ */
+package org.klco.email2html.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests copying and digesting files with the reused buffers.
+ * 
+ * @author dklco
+ */
+public class CopyUtilsTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("email2html-test", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testCopyAndDigest() throws Exception {
+		// spans several blocks and ends part way through one
+		byte[] content = createContent(1, CopyUtils.BUFFER_SIZE * 3 + 17);
+		File file = new File(dir, "copy");
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		assertEquals(content.length, CopyUtils.copy(new ByteArrayInputStream(
+				content), file, digest));
+		assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+		byte[] expected = MessageDigest.getInstance("SHA-1").digest(content);
+		assertArrayEquals(expected, digest.digest());
+
+		MessageDigest fileDigest = MessageDigest.getInstance("SHA-1");
+		assertEquals(content.length, CopyUtils.digest(file, fileDigest));
+		assertArrayEquals(expected, fileDigest.digest());
+	}
+
+	@Test
+	public void testCopyReplaces() throws Exception {
+		File file = new File(dir, "copy");
+		FileUtils.writeByteArrayToFile(file, createContent(2, 1000));
+		byte[] content = createContent(3, 10);
+		CopyUtils.copy(new ByteArrayInputStream(content), file, null);
+		assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+	}
+
+	@Test
+	public void testConcurrentCopies() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < 32; i++) {
+				final int n = i;
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						byte[] content = createContent(n,
+								CopyUtils.BUFFER_SIZE + n * 1000);
+						File file = new File(dir, "copy-" + n);
+						CopyUtils.copy(new ByteArrayInputStream(content), file,
+								null);
+						assertArrayEquals(content,
+								FileUtils.readFileToByteArray(file));
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testRename() throws Exception {
+		File from = new File(dir, "from");
+		File to = new File(dir, "to");
+		FileUtils.writeStringToFile(from, "new", "UTF-8");
+		FileUtils.writeStringToFile(to, "old", "UTF-8");
+		CopyUtils.rename(from, to);
+		assertFalse(from.exists());
+		assertEquals("new", FileUtils.readFileToString(to, "UTF-8"));
+	}
+
+	private static byte[] createContent(int seed, int length) {
+		byte[] content = new byte[length];
+		new Random(seed).nextBytes(content);
+		return content;
+	}
+}